@@ -0,0 +1,119 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/****************************************************************************
+* Checks that the steps of the simulation allocate nothing once they are
+* warmed up.  For each integration method (and its SIMD and block time
+* step versions, where there are some), with the events looked for and
+* with the mutual attraction of the particles where it is supported, a
+* swarm is stepped until the JIT has compiled the steps, then the bytes
+* allocated by the thread over a number of steps are read from the thread
+* allocation counters of the JVM.
+*
+* The steps are taken on a single thread, so that everything they
+* allocate is counted (on several threads, the ForkJoinPool also makes a
+* few tasks per step, whatever the number of particles).  The program
+* prints a line per case and exits with status 1 if any of them
+* allocated.
+*
+* Usage: java AllocCheck [-np n] [-warmup steps] [-steps n]
+****************************************************************************/
+
+public class AllocCheck {
+
+  private static final String usage =
+    "Usage: java AllocCheck [-np n] [-warmup steps] [-steps n]";
+
+  /////////////////////////////////////////////////////////////////////////////
+  // The main program
+  /////////////////////////////////////////////////////////////////////////////
+  public static void main(String args[]) {
+    Locale.setDefault(new Locale("en","US"));
+    int np = 100, warmup = 5000, steps = 500;
+    try {
+      for(int i=0; i<args.length; i++) {
+        if (args[i].equals("-np")) {
+          np = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-warmup")) {
+          warmup = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-steps")) {
+          steps = Integer.parseInt(args[++i]);
+        } else {
+          throw new IllegalArgumentException(args[i]);
+        }
+      }
+      if (np <= 0 || warmup < 0 || steps <= 0) throw new IllegalArgumentException();
+    } catch(Exception e) {
+      System.err.println(usage);
+      System.exit(2);
+    }
+    if (Bench.allocatedBytes() < 0) {
+      System.err.println("This JVM does not count the bytes allocated by a thread");
+      System.exit(2);
+    }
+
+    int failed = 0;
+    for(Simulation sim : cases(np)) {
+      String name = describe(sim);
+      for(int k=0; k<warmup; k++) sim.step();
+      long a = Bench.allocatedBytes();
+      for(int k=0; k<steps; k++) sim.step();
+      long bytes = Bench.allocatedBytes()-a;
+      System.out.printf("%-32s %10d bytes in %d steps%s%n",name,bytes,steps,
+                        (bytes != 0) ? "  ALLOCATES" : "");
+      if (bytes != 0) failed++;
+    }
+    if (failed > 0) {
+      System.out.printf("%d case(s) allocate%n",failed);
+      System.exit(1);
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // The simulations to check, each with its own swarm of np particles.
+  /////////////////////////////////////////////////////////////////////////////
+  static List<Simulation> cases(int np) {
+    String[] names = {"euler","rk4","leapfrog","yoshida4","yoshida6","rk45",
+                      "kepler","wh","levicivita"};
+    List<Simulation> list = new ArrayList<Simulation>();
+    for(String name : names) {
+      Integrator integrator = Integrator.forName(name);
+      list.add(simulation(np,integrator,null));
+      Integrator simd = Integrator.vectorized(Integrator.forName(name));
+      if (simd.scalar() != simd) list.add(simulation(np,simd,null));
+      if (BlockStepIntegrator.supports(integrator))
+        list.add(simulation(np,new BlockStepIntegrator(Integrator.forName(name)),null));
+      if (NBody.supports(integrator))
+        list.add(simulation(np,Integrator.forName(name),new NBody()));
+    }
+    return list;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // A simulation of a swarm of np particles with the given integrator,
+  // stepped on the calling thread, with the events looked for.
+  /////////////////////////////////////////////////////////////////////////////
+  static Simulation simulation(int np, Integrator integrator, NBody nbody) {
+    Simulation sim = new Simulation();
+    ParticleStore p = Bench.swarm(np,new Random(1));
+    if (nbody != null) {
+      for(int i=0; i<np; i++) p.m[i] = 1.0e-9;
+    }
+    sim.replace(p,integrator,nbody,true,1,np);
+    return sim;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // The integrator of sim and how it is used, e.g. "rk4 simd".
+  /////////////////////////////////////////////////////////////////////////////
+  static String describe(Simulation sim) {
+    Integrator i = sim.integrator;
+    String name = i.name();
+    if (i.scalar() != i) name += " simd";
+    if (i instanceof BlockStepIntegrator) name += " block";
+    if (sim.nbody != null) name += " nbody";
+    return name;
+  }
+}
@@ -0,0 +1,352 @@
+import graph.Plot;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/****************************************************************************
+* Microbenchmarks of the hot paths: the force function, the RK4 and Euler
+* steps of a single particle, combine(), whole frames as taken by the
+* simulation thread (a step, find_vL and the publication of a snapshot)
+* for 1 to 100000 particles, and the painting of the plot into an
+* off-screen image for several lengths of the trails.
+*
+* Each benchmark is warmed up, then timed over several iterations of a
+* number of operations chosen so that an iteration lasts about the time
+* asked for.  The time per operation is given with its standard deviation
+* over the iterations, together with the number of bytes allocated per
+* operation (from the thread allocation counters of the JVM, when it has
+* them).  The results are written as CSV, or as JSON with -json, so that
+* runs before and after a change can be compared by a script.
+*
+* Usage: java Bench [-only text] [-warmup ms] [-time ms] [-iterations n]
+*                   [-json] [-o output]
+*
+* -only keeps the benchmarks whose name contains the text.
+****************************************************************************/
+
+public class Bench {
+
+  private static final String usage =
+    "Usage: java Bench [-only text] [-warmup ms] [-time ms] [-iterations n] [-json] [-o output]";
+
+  // results are added here so that the JIT cannot drop the work:
+  static volatile double sink;
+
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  /////////////////////////////////////////////////////////////////////////////
+  // A benchmark: setup() is called once before it is timed, and run(ops)
+  // performs ops operations and returns a value depending on all of them.
+  /////////////////////////////////////////////////////////////////////////////
+  abstract static class Case {
+    final String name, params;
+
+    Case(String name, String params) {
+      this.name = name;
+      this.params = params;
+    }
+
+    void setup() {}
+
+    abstract double run(long ops);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // The result of a benchmark.
+  /////////////////////////////////////////////////////////////////////////////
+  static class Result {
+    String name, params;
+    int iterations;
+    long ops;
+    double nsPerOp, stddev, bytesPerOp;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // The main program
+  /////////////////////////////////////////////////////////////////////////////
+  public static void main(String args[]) {
+    Locale.setDefault(new Locale("en","US"));
+    String only = null, output = "-";
+    long warmup = 1000, time = 1000;
+    int iterations = 5;
+    boolean json = false;
+    try {
+      for(int i=0; i<args.length; i++) {
+        if (args[i].equals("-only")) {
+          only = args[++i];
+        } else if (args[i].equals("-warmup")) {
+          warmup = Long.parseLong(args[++i]);
+        } else if (args[i].equals("-time")) {
+          time = Long.parseLong(args[++i]);
+        } else if (args[i].equals("-iterations")) {
+          iterations = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-json")) {
+          json = true;
+        } else if (args[i].equals("-o")) {
+          output = args[++i];
+        } else {
+          throw new IllegalArgumentException(args[i]);
+        }
+      }
+      if (warmup < 0 || time <= 0 || iterations <= 0) throw new IllegalArgumentException();
+    } catch(Exception e) {
+      System.err.println(usage);
+      System.exit(2);
+    }
+
+    List<Result> results = new ArrayList<Result>();
+    for(Case c : cases()) {
+      if (only != null && !(c.name+" "+c.params).contains(only)) continue;
+      System.err.printf("%s %s%n",c.name,c.params);
+      c.setup();
+      results.add(measure(c,warmup*1000000L,time*1000000L,iterations));
+    }
+
+    try {
+      PrintWriter out = output.equals("-") ? new PrintWriter(System.out)
+                                           : new PrintWriter(new FileWriter(output));
+      if (json) writeJSON(out,results); else writeCSV(out,results);
+      out.flush();
+      if (out.checkError()) throw new IOException("Unable to write to \""+output+"\"");
+      if (!output.equals("-")) out.close();
+    } catch(IOException e) {
+      System.err.println(e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This times a benchmark: it is run for about warmup nanoseconds, then
+  // the number of operations which take about time nanoseconds is run
+  // iterations times.
+  /////////////////////////////////////////////////////////////////////////////
+  static Result measure(Case c, long warmup, long time, int iterations) {
+    // warm up, doubling the number of operations until they take a tenth
+    // of an iteration:
+    long ops = 1, t, start = System.nanoTime();
+    while (true) {
+      t = System.nanoTime();
+      sink += c.run(ops);
+      t = System.nanoTime()-t;
+      if (t >= time/10 && System.nanoTime()-start >= warmup) break;
+      if (t < time/10) ops *= 2;
+    }
+    ops = Math.max(1,(long) ((double) ops*time/Math.max(t,1)));
+
+    double[] ns = new double[iterations];
+    long bytes = 0, a;
+    boolean alloc = true;
+    for(int k=0; k<iterations; k++) {
+      a = allocatedBytes();
+      t = System.nanoTime();
+      sink += c.run(ops);
+      t = System.nanoTime()-t;
+      ns[k] = (double) t/ops;
+      if (a < 0) alloc = false; else bytes += allocatedBytes()-a;
+    }
+
+    Result r = new Result();
+    r.name = c.name;
+    r.params = c.params;
+    r.iterations = iterations;
+    r.ops = ops;
+    double mean = 0.0, var = 0.0;
+    for(int k=0; k<iterations; k++) mean += ns[k]/iterations;
+    for(int k=0; k<iterations; k++) var += (ns[k]-mean)*(ns[k]-mean);
+    r.nsPerOp = mean;
+    r.stddev = (iterations > 1) ? Math.sqrt(var/(iterations-1)) : 0.0;
+    r.bytesPerOp = alloc ? (double) bytes/(ops*iterations) : Double.NaN;
+    return r;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // The number of bytes allocated so far by the current thread, or -1 if
+  // the JVM cannot tell.
+  /////////////////////////////////////////////////////////////////////////////
+  static long allocatedBytes() {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+      if (t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled())
+        return t.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // The benchmarks.
+  /////////////////////////////////////////////////////////////////////////////
+  static List<Case> cases() {
+    List<Case> list = new ArrayList<Case>();
+    final Gravity g = new Gravity();
+
+    list.add(new Case("gravity.F","") {
+      final double[] xx = {0.5, 0.1, 0.2, 1.3}, k = new double[4];
+      double run(long ops) {
+        double s = 0.0;
+        for(long i=0; i<ops; i++) {
+          xx[1] = 0.1 + 1.0e-9*(i & 1023);
+          g.F(xx,k);
+          s += k[2];
+        }
+        return s;
+      }
+    });
+
+    list.add(new Case("rk4.combine","") {
+      final double[] a = {0.5, 0.1, 0.2, 1.3}, b = {0.1, 0.2, 0.3, 0.4};
+      final double[] r = new double[4];
+      double run(long ops) {
+        double s = 0.0;
+        for(long i=0; i<ops; i++) {
+          RK4Integrator.combine(1.0,a,1.0e-3*(i & 1023),b,r);
+          s += r[3];
+        }
+        return s;
+      }
+    });
+
+    list.add(stepCase("rk4.step",new RK4Integrator(),g));
+    list.add(stepCase("euler.step",new EulerIntegrator(),g));
+
+    int[] sizes = {1, 8, 1000, 100000};
+    for(int np : sizes) list.add(frameCase(np));
+
+    int[] npasts = {1, 100, 1000};
+    for(int npast : npasts) list.add(paintCase(1000,npast,false));
+    list.add(paintCase(1000,100,true));
+    return list;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // A step of a single particle on a circular orbit with the given method.
+  /////////////////////////////////////////////////////////////////////////////
+  static Case stepCase(String name, final Integrator integrator, final Gravity g) {
+    return new Case(name,"np=1") {
+      final ParticleStore p = new ParticleStore(1);
+      void setup() { p.set(0,0.0,0.5,Math.sqrt(2.0),0.0,Color.green); }
+      double run(long ops) {
+        for(long i=0; i<ops; i++) integrator.step(g,p,0,1,0.005);
+        return p.x[0];
+      }
+    };
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // What the simulation thread does at each tick with a time warp of 1:
+  // a step of all the particles, find_vL and the publication of a snapshot.
+  /////////////////////////////////////////////////////////////////////////////
+  static Case frameCase(final int np) {
+    return new Case("frame","np="+np) {
+      final Simulation sim = new Simulation();
+      final SnapshotBuffer buffer = new SnapshotBuffer();
+      void setup() {
+        sim.particles = swarm(np,new Random(1));
+        sim.generation++;
+        buffer.publish(sim);
+      }
+      double run(long ops) {
+        for(long i=0; i<ops; i++) {
+          sim.step();
+          sim.find_vL();
+          buffer.publish(sim);
+        }
+        return sim.particles.x[0];
+      }
+    };
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // A frame of the plot: new positions are added to the trails and the
+  // plot is painted into an off-screen image.  With redraw, the trails are
+  // redrawn from scratch every time (as after a zoom).
+  /////////////////////////////////////////////////////////////////////////////
+  static Case paintCase(final int np, final int npast, final boolean redraw) {
+    return new Case(redraw ? "plot.paint.redraw" : "plot.paint",
+                    "np="+np+" npast="+npast) {
+      static final int nframes = 64;
+      final double[][] xs = new double[nframes][], ys = new double[nframes][];
+      BufferedImage image;
+      Graphics2D g2D;
+      Plot plot;
+      void setup() {
+        Simulation sim = new Simulation();
+        sim.particles = swarm(np,new Random(1));
+        for(int k=0; k<nframes; k++) {
+          for(int j=0; j<10; j++) sim.step();
+          xs[k] = sim.particles.x.clone();
+          ys[k] = sim.particles.y.clone();
+        }
+        plot = new Plot(sim.planetSize,xs[0],ys[0],sim.particles.colors);
+        plot.setNpast(npast);
+        plot.setSize(800,800);
+        image = new BufferedImage(800,800,BufferedImage.TYPE_INT_ARGB);
+        g2D = image.createGraphics();
+        for(int k=0; k<npast; k++) plot.setPositions(xs[k % nframes],ys[k % nframes]);
+      }
+      double run(long ops) {
+        for(long i=0; i<ops; i++) {
+          int k = (int) (i % nframes);
+          plot.setPositions(xs[k],ys[k]);
+          if (redraw) plot.invalidateTrails();
+          plot.paint(g2D);
+        }
+        return image.getRGB(400,400);
+      }
+    };
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // np particles on circular orbits between r = 0.3 and r = 1 around the
+  // default planet (G = M = 1), with random colours.
+  /////////////////////////////////////////////////////////////////////////////
+  static ParticleStore swarm(int np, Random random) {
+    ParticleStore p = new ParticleStore(np);
+    for(int i=0; i<np; i++) {
+      double r = 0.3+0.7*random.nextDouble();
+      double a = 2.0*Math.PI*random.nextDouble();
+      double v = Math.sqrt(1.0/r);
+      p.set(i,r*Math.cos(a),r*Math.sin(a),-v*Math.sin(a),v*Math.cos(a),
+            new Color(random.nextInt(0xffffff)));
+    }
+    p.find_vL(0.0,0.0);
+    return p;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Writes the results as CSV, one benchmark per line.
+  /////////////////////////////////////////////////////////////////////////////
+  static void writeCSV(PrintWriter out, List<Result> results) {
+    out.println("benchmark,params,iterations,ops_per_iteration,ns_per_op,stddev_ns,"+
+                "ops_per_s,bytes_per_op");
+    for(Result r : results) {
+      out.printf("%s,%s,%d,%d,%.6g,%.3g,%.6g,%.4g%n",r.name,r.params,r.iterations,r.ops,
+                 r.nsPerOp,r.stddev,1.0e9/r.nsPerOp,r.bytesPerOp);
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Writes the results as a JSON array of objects.
+  /////////////////////////////////////////////////////////////////////////////
+  static void writeJSON(PrintWriter out, List<Result> results) {
+    out.println("[");
+    for(int k=0; k<results.size(); k++) {
+      Result r = results.get(k);
+      out.printf("  {\"benchmark\": \"%s\", \"params\": \"%s\", \"iterations\": %d, "+
+                 "\"opsPerIteration\": %d, \"nsPerOp\": %.6g, \"stddevNs\": %.3g, "+
+                 "\"opsPerSecond\": %.6g, \"bytesPerOp\": %s}%s%n",
+                 r.name,r.params,r.iterations,r.ops,r.nsPerOp,r.stddev,1.0e9/r.nsPerOp,
+                 Double.isNaN(r.bytesPerOp) ? "null" : String.format("%.4g",r.bytesPerOp),
+                 (k < results.size()-1) ? "," : "");
+    }
+    out.println("]");
+  }
+}
@@ -0,0 +1,217 @@
+import graph.Plot;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.StringTokenizer;
+
+/****************************************************************************
+* End-to-end scaling runs on the synthetic swarms of Scenarios.  For each
+* swarm and number of particles, frames are run for a given time, first
+* headless (a frame is what the simulation thread does at each tick with
+* a time warp of 1: a step, find_vL and the publication of a snapshot),
+* then with rendering (the snapshot is also taken, added to the trails and
+* painted into an 800x800 off-screen image, as the window would do).
+*
+* Each run gives a line of CSV with the steps per second, the percentiles
+* of the frame time, the heap in use at the end (after a garbage
+* collection, so the memory held by the simulation, the snapshots and the
+* plot), and the largest relative drift of the energy of a particle.
+*
+* Usage: java Scaling [-scenarios disk,ring,...] [-sizes 100,1000,...]
+*                     [-seconds s] [-warmup s] [-npast n] [-renderMax n]
+*                     [-o output]
+*
+* Rendering is skipped for more than renderMax particles (default 10^6),
+* where the trails alone would need npast*n*16 bytes.
+****************************************************************************/
+
+public class Scaling {
+
+  private static final String usage =
+    "Usage: java Scaling [-scenarios disk,ring,...] [-sizes 100,1000,...] [-seconds s] "+
+    "[-warmup s] [-npast n] [-renderMax n] [-o output]";
+
+  /////////////////////////////////////////////////////////////////////////////
+  // The main program
+  /////////////////////////////////////////////////////////////////////////////
+  public static void main(String args[]) {
+    Locale.setDefault(new Locale("en","US"));
+    String[] scenarios = Scenarios.names;
+    int[] sizes = {100, 1000, 10000, 100000, 1000000};
+    double seconds = 3.0, warmup = 1.0;
+    int npast = 10, renderMax = 1000000;
+    String output = "-";
+    try {
+      for(int i=0; i<args.length; i++) {
+        if (args[i].equals("-scenarios")) {
+          scenarios = split(args[++i]);
+          for(String s : scenarios) Scenarios.generate(s,1,1);
+        } else if (args[i].equals("-sizes")) {
+          String[] s = split(args[++i]);
+          sizes = new int[s.length];
+          for(int k=0; k<s.length; k++) sizes[k] = (int) Double.parseDouble(s[k]);
+        } else if (args[i].equals("-seconds")) {
+          seconds = Double.parseDouble(args[++i]);
+        } else if (args[i].equals("-warmup")) {
+          warmup = Double.parseDouble(args[++i]);
+        } else if (args[i].equals("-npast")) {
+          npast = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-renderMax")) {
+          renderMax = (int) Double.parseDouble(args[++i]);
+        } else if (args[i].equals("-o")) {
+          output = args[++i];
+        } else {
+          throw new IllegalArgumentException(args[i]);
+        }
+      }
+      if (!(seconds > 0.0) || !(warmup >= 0.0) || npast <= 0) throw new IllegalArgumentException();
+    } catch(Exception e) {
+      System.err.println(usage);
+      System.exit(2);
+    }
+
+    PrintWriter out = null;
+    try {
+      out = output.equals("-") ? new PrintWriter(System.out)
+                               : new PrintWriter(new FileWriter(output));
+    } catch(IOException e) {
+      System.err.println(e.getMessage());
+      System.exit(1);
+    }
+    out.println("scenario,np,mode,frames,steps_per_s,particle_steps_per_s,"+
+                "frame_p50_ms,frame_p90_ms,frame_p99_ms,frame_max_ms,heap_mb,energy_error");
+    out.flush();
+    for(String s : scenarios) {
+      for(int n : sizes) {
+        run(out,s,n,false,seconds,warmup,npast);
+        if (n <= renderMax) run(out,s,n,true,seconds,warmup,npast);
+      }
+    }
+    out.close();
+    if (out.checkError()) {
+      System.err.println("Unable to write to \""+output+"\"");
+      System.exit(1);
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This runs frames of a swarm for warmup seconds, then for seconds while
+  // timing them, and writes a line of results to out.
+  /////////////////////////////////////////////////////////////////////////////
+  static void run(PrintWriter out, String scenario, int n, boolean render,
+                  double seconds, double warmup, int npast) {
+    System.err.printf("%s %d %s%n",scenario,n,render ? "render" : "headless");
+    System.gc();
+    Simulation sim = Scenarios.scenario(scenario,n,1);
+    SnapshotBuffer buffer = new SnapshotBuffer();
+    buffer.publish(sim);
+    Plot plot = null;
+    BufferedImage image = null;
+    Graphics2D g2D = null;
+    if (render) {
+      buffer.update();
+      Snapshot s = buffer.front();
+      plot = new Plot(s.planetSize,s.particles.x,s.particles.y,s.particles.colors);
+      plot.setNpast(npast);
+      plot.setSize(800,800);
+      image = new BufferedImage(800,800,BufferedImage.TYPE_INT_ARGB);
+      g2D = image.createGraphics();
+    }
+    double[] E0 = energies(sim);
+
+    long[] frames = new long[1024];
+    int nframes = 0;
+    long start = System.nanoTime(), measureStart = -1, t, now;
+    long warmupNanos = (long) (warmup*1.0e9), endNanos = warmupNanos + (long) (seconds*1.0e9);
+    while (true) {
+      t = System.nanoTime();
+      if (measureStart < 0 && t-start >= warmupNanos) measureStart = t;
+      if (t-start >= endNanos && nframes >= 3) break;
+      sim.step();
+      sim.find_vL();
+      buffer.publish(sim);
+      if (render) {
+        buffer.update();
+        Snapshot s = buffer.front();
+        plot.setPositions(s.particles.x,s.particles.y);
+        plot.paint(g2D);
+      }
+      now = System.nanoTime();
+      if (measureStart >= 0) {
+        if (nframes == frames.length) frames = Arrays.copyOf(frames,2*nframes);
+        frames[nframes++] = now-t;
+      }
+    }
+    double elapsed = (System.nanoTime()-measureStart)*1.0e-9;
+    double error = energyError(sim,E0);
+
+    System.gc();
+    double heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed()/1048576.0;
+    // (what is measured must stay reachable until then)
+    Reference.reachabilityFence(sim);
+    Reference.reachabilityFence(buffer);
+    Reference.reachabilityFence(plot);
+
+    Arrays.sort(frames,0,nframes);
+    out.printf("%s,%d,%s,%d,%.4g,%.4g,%.4g,%.4g,%.4g,%.4g,%.1f,%.3g%n",
+               scenario,n,render ? "render" : "headless",nframes,
+               nframes/elapsed,nframes*(double)n/elapsed,
+               percentile(frames,nframes,0.5),percentile(frames,nframes,0.9),
+               percentile(frames,nframes,0.99),frames[nframes-1]*1.0e-6,heap,error);
+    out.flush();
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // The frame time below which a fraction q of the nframes sorted frame
+  // times are, in milliseconds.
+  /////////////////////////////////////////////////////////////////////////////
+  static double percentile(long[] frames, int nframes, double q) {
+    int k = (int) Math.ceil(q*nframes)-1;
+    return frames[Math.max(0,Math.min(nframes-1,k))]*1.0e-6;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // The energy v^2/2 - GM/r of each particle.
+  /////////////////////////////////////////////////////////////////////////////
+  static double[] energies(Simulation sim) {
+    ParticleStore p = sim.particles;
+    Gravity g = sim.gravity;
+    double[] E = new double[p.n];
+    double x, y;
+    for(int i=0; i<p.n; i++) {
+      x = p.x[i]-g.x0;
+      y = p.y[i]-g.y0;
+      E[i] = (p.vx[i]*p.vx[i]+p.vy[i]*p.vy[i])/2.0 - g.G*g.M/Math.sqrt(x*x+y*y);
+    }
+    return E;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // The largest relative change of the energy of a particle which has not
+  // hit the planet, since the energies were E0.
+  /////////////////////////////////////////////////////////////////////////////
+  static double energyError(Simulation sim, double[] E0) {
+    double[] E = energies(sim);
+    double error = 0.0;
+    for(int i=0; i<E.length; i++) {
+      if (sim.particles.active[i]) error = Math.max(error,Math.abs((E[i]-E0[i])/E0[i]));
+    }
+    return error;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This splits a comma separated list.
+  /////////////////////////////////////////////////////////////////////////////
+  static String[] split(String list) {
+    StringTokenizer t = new StringTokenizer(list,",");
+    String[] s = new String[t.countTokens()];
+    for(int k=0; k<s.length; k++) s[k] = t.nextToken();
+    return s;
+  }
+}
@@ -0,0 +1,138 @@
+import java.awt.Color;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Random;
+
+/****************************************************************************
+* Synthetic swarms of particles around the default planet (G = M = 1,
+* radius 0.1), for measuring how the simulation and the plot scale with
+* the number of particles:
+*
+*   disk       circular orbits spread uniformly over a disk 0.2 < r < 1
+*   ring       a narrow ring around r = 0.6, with a small velocity dispersion
+*   eccentric  orbits with random sizes, eccentricities (0.3 to 0.9, with
+*              the periapsis outside the planet), orientations and phases
+*   flyby      hyperbolic orbits coming from the left with impact parameters
+*              between 0.15 and 1
+*
+* The swarms can be made in memory (generate) or written as configuration
+* files:
+*
+* Usage: java Scenarios (disk | ring | eccentric | flyby) n [-seed s] [-o output]
+****************************************************************************/
+
+public class Scenarios {
+
+  public static final String[] names = {"disk", "ring", "eccentric", "flyby"};
+
+  private static final String usage =
+    "Usage: java Scenarios (disk | ring | eccentric | flyby) n [-seed s] [-o output]";
+
+  // a few colours shared by all the particles, rather than one per particle:
+  private static final Color[] palette = {Color.green, Color.blue, Color.red,
+    Color.yellow, Color.cyan, Color.magenta, Color.orange, Color.pink};
+
+  /////////////////////////////////////////////////////////////////////////////
+  // The main program
+  /////////////////////////////////////////////////////////////////////////////
+  public static void main(String args[]) {
+    Locale.setDefault(new Locale("en","US"));
+    String kind = null, output = "-";
+    int n = -1;
+    long seed = 1;
+    try {
+      for(int i=0; i<args.length; i++) {
+        if (args[i].equals("-seed")) {
+          seed = Long.parseLong(args[++i]);
+        } else if (args[i].equals("-o")) {
+          output = args[++i];
+        } else if (kind == null) {
+          kind = args[i];
+        } else if (n < 0) {
+          n = Integer.parseInt(args[i]);
+        } else {
+          throw new IllegalArgumentException(args[i]);
+        }
+      }
+      if (kind == null || n < 0) throw new IllegalArgumentException();
+      generate(kind,1,seed);
+    } catch(Exception e) {
+      System.err.println(usage);
+      System.exit(2);
+    }
+
+    Simulation sim = scenario(kind,n,seed);
+    try {
+      if (output.equals("-")) {
+        sim.writeConfig(new PrintWriter(System.out));
+      } else {
+        sim.writeConfig(output);
+      }
+    } catch(IOException e) {
+      System.err.println(e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns a simulation of the given swarm, with the default planet
+  // and time step.
+  /////////////////////////////////////////////////////////////////////////////
+  public static Simulation scenario(String kind, int n, long seed) {
+    Simulation sim = new Simulation();
+    sim.particles = generate(kind,n,seed);
+    sim.find_vL();
+    sim.generation++;
+    return sim;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns n particles of the given kind of swarm (see above), made
+  // with the given random seed.
+  /////////////////////////////////////////////////////////////////////////////
+  public static ParticleStore generate(String kind, int n, long seed) {
+    Random random = new Random(seed);
+    ParticleStore p = new ParticleStore(n);
+    double r, a, v, e, q, nu, phi, bmin = 0.15;
+    for(int i=0; i<n; i++) {
+      a = 2.0*Math.PI*random.nextDouble();
+      if (kind.equals("disk")) {
+        // uniform in area between r = 0.2 and r = 1:
+        r = Math.sqrt(0.04+0.96*random.nextDouble());
+        v = Math.sqrt(1.0/r);
+        p.set(i,r*Math.cos(a),r*Math.sin(a),-v*Math.sin(a),v*Math.cos(a),null);
+      } else if (kind.equals("ring")) {
+        r = 0.6+0.005*random.nextGaussian();
+        v = Math.sqrt(1.0/r);
+        p.set(i,r*Math.cos(a),r*Math.sin(a),
+              -v*Math.sin(a)+0.01*v*random.nextGaussian(),
+              v*Math.cos(a)+0.01*v*random.nextGaussian(),null);
+      } else if (kind.equals("eccentric")) {
+        // semi-major axis, eccentricity, true anomaly and semi-latus rectum q:
+        double sma = 0.3+0.7*random.nextDouble();
+        e = Math.min(0.3+0.6*random.nextDouble(),1.0-0.12/sma);
+        nu = 2.0*Math.PI*random.nextDouble();
+        q = sma*(1.0-e*e);
+        r = q/(1.0+e*Math.cos(nu));
+        // radial and transverse velocities:
+        double vr = Math.sqrt(1.0/q)*e*Math.sin(nu);
+        double vt = Math.sqrt(1.0/q)*(1.0+e*Math.cos(nu));
+        phi = a+nu; // direction of the particle (a is that of the periapsis)
+        p.set(i,r*Math.cos(phi),r*Math.sin(phi),
+              vr*Math.cos(phi)-vt*Math.sin(phi),vr*Math.sin(phi)+vt*Math.cos(phi),null);
+      } else if (kind.equals("flyby")) {
+        // speed at infinity between 0.5 and 1.5, coming from x = -2:
+        double vinf = 0.5+random.nextDouble();
+        double b = (random.nextBoolean() ? 1.0 : -1.0)*(bmin+(1.0-bmin)*random.nextDouble());
+        r = Math.sqrt(4.0+b*b);
+        v = Math.sqrt(vinf*vinf+2.0/r);
+        p.set(i,-2.0,b,v,0.0,null);
+      } else {
+        throw new IllegalArgumentException(kind);
+      }
+      p.colors[i] = palette[i % palette.length];
+    }
+    return p;
+  }
+}
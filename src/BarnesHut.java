@@ -0,0 +1,366 @@
+import java.util.Arrays;
+
+/****************************************************************************
+* Mutual gravitational accelerations of the particles, computed with a
+* Barnes-Hut quadtree: the attraction of a group of particles which is far
+* enough away is replaced by that of their centre of mass.  The tree is
+* kept in flat arrays which are reused from one step to the next.  With
+* few attracting particles, the accelerations are summed directly instead.
+*
+* Only active particles with a non-zero mass attract the others; all
+* particles are attracted.  All of them are put in the tree (the others
+* with no weight in the centres of mass), and their accelerations are
+* computed in the order of the tree, so that neighbouring particles, which
+* open the same cells, are handled one after the other.
+****************************************************************************/
+
+public class BarnesHut {
+
+  // opening angle: a cell of size s at a distance d is used as a whole
+  // when s/d < theta and the particle is not inside it (0 = direct
+  // summation):
+  public double theta = 0.5;
+
+  // below this number of attracting particles, the sum is done directly:
+  public int directThreshold = 64;
+
+  // softening length, which limits the force during close encounters:
+  public double softening = 0.0;
+
+  // a leaf is split when it would hold more than leafSize particles, unless
+  // it is at maxDepth (e.g. when many particles are at the same position):
+  private static final int leafSize = 8, maxDepth = 48;
+
+  // indices of the attracting particles:
+  private int[] sources = new int[0];
+  private int nsources;
+
+  // all the particles, in the order in which accelerations are computed:
+  private int[] order = new int[0];
+
+  // the cells; cell 0 is the root.  Cell k has children child[4k], ...,
+  // child[4k+3] (-1 = none), or is a leaf if leaf[k], in which case its
+  // count[k] particles are first[k], next[first[k]], ... (-1 = end).
+  private int ncells;
+  private int[] child = new int[0], first = new int[0], count = new int[0];
+  private boolean[] leaf = new boolean[0];
+  private double[] cx = new double[0], cy = new double[0], half = new double[0];
+  private double[] mass = new double[0], comx = new double[0], comy = new double[0];
+  private int[] next = new int[0];
+
+  private static final ThreadLocal<int[]> stack = new ThreadLocal<int[]>() {
+    protected int[] initialValue() { return new int[3*maxDepth+4]; }
+  };
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This builds the tree (if needed) for the current positions of p.  It
+  // must be called before accelerations, and again whenever the particles
+  // have moved.
+  /////////////////////////////////////////////////////////////////////////////
+  public void build(ParticleStore p) {
+    int i, k, n = p.n;
+    if (sources.length != n) {
+      sources = new int[n];
+      order = new int[n];
+      next = new int[n];
+    }
+    nsources = 0;
+    for(i=0; i<n; i++) {
+      if (p.m[i] != 0.0 && p.active[i] && finite(p,i)) sources[nsources++] = i;
+    }
+    ncells = 0;
+    if (nsources <= directThreshold || theta <= 0.0) {
+      for(i=0; i<n; i++) order[i] = i;
+      return;
+    }
+
+    double xmin = Double.POSITIVE_INFINITY, xmax = Double.NEGATIVE_INFINITY;
+    double ymin = Double.POSITIVE_INFINITY, ymax = Double.NEGATIVE_INFINITY;
+    for(i=0; i<n; i++) {
+      if (!finite(p,i)) continue;
+      xmin = Math.min(xmin,p.x[i]); xmax = Math.max(xmax,p.x[i]);
+      ymin = Math.min(ymin,p.y[i]); ymax = Math.max(ymax,p.y[i]);
+    }
+    double h = 0.5*Math.max(xmax-xmin,ymax-ymin);
+    newCell(0.5*(xmin+xmax),0.5*(ymin+ymax),h*(1.0+1.0e-9)+Double.MIN_NORMAL);
+    for(i=0; i<n; i++) {
+      if (finite(p,i)) insert(p,i);
+    }
+
+    // the particles in the tree, depth first, then the others:
+    int[] st = stack.get();
+    int sp = 0, no = 0;
+    st[sp++] = 0;
+    while (sp > 0) {
+      int c = st[--sp];
+      if (leaf[c]) {
+        for(i=first[c]; i>=0; i=next[i]) order[no++] = i;
+      } else {
+        for(int q=3; q>=0; q--) {
+          if (child[4*c+q] >= 0) st[sp++] = child[4*c+q];
+        }
+      }
+    }
+    for(i=0; i<n; i++) {
+      if (!finite(p,i)) order[no++] = i;
+    }
+
+    // centres of mass, from the leaves up (children come after parents):
+    int c, j;
+    double m, mx, my;
+    for(c=ncells-1; c>=0; c--) {
+      m = mx = my = 0.0;
+      if (leaf[c]) {
+        for(j=first[c]; j>=0; j=next[j]) {
+          if (!p.active[j]) continue;
+          m += p.m[j]; mx += p.m[j]*p.x[j]; my += p.m[j]*p.y[j];
+        }
+      } else {
+        for(int q=0; q<4; q++) {
+          j = child[4*c+q];
+          if (j < 0) continue;
+          m += mass[j]; mx += mass[j]*comx[j]; my += mass[j]*comy[j];
+        }
+      }
+      mass[c] = m;
+      comx[c] = (m != 0.0) ? mx/m : cx[c];
+      comy[c] = (m != 0.0) ? my/m : cy[c];
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Particles which have escaped to infinity are left out of the tree.
+  /////////////////////////////////////////////////////////////////////////////
+  private static boolean finite(ParticleStore p, int i) {
+    return Math.abs(p.x[i]) <= Double.MAX_VALUE && Math.abs(p.y[i]) <= Double.MAX_VALUE;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This adds particle i to the tree.
+  /////////////////////////////////////////////////////////////////////////////
+  private void insert(ParticleStore p, int i) {
+    double x = p.x[i], y = p.y[i];
+    int c = 0, depth = 0, q, b, k;
+    while (true) {
+      if (leaf[c]) {
+        if (count[c] < leafSize || depth >= maxDepth) {
+          add(c,i);
+          return;
+        }
+        // split the leaf and go on:
+        leaf[c] = false;
+        for(b=first[c]; b>=0; b=k) {
+          k = next[b];
+          q = quadrant(c,p.x[b],p.y[b]);
+          if (child[4*c+q] < 0) {
+            int d = newChild(c,q); // (which may reallocate the arrays)
+            child[4*c+q] = d;
+          }
+          add(child[4*c+q],b);
+        }
+        first[c] = -1;
+        count[c] = 0;
+      }
+      q = quadrant(c,x,y);
+      if (child[4*c+q] < 0) {
+        k = newChild(c,q);
+        child[4*c+q] = k;
+        add(k,i);
+        return;
+      }
+      c = child[4*c+q];
+      depth++;
+    }
+  }
+
+  private void add(int c, int i) {
+    next[i] = first[c];
+    first[c] = i;
+    count[c]++;
+  }
+
+  private int quadrant(int c, double x, double y) {
+    return ((x >= cx[c]) ? 1 : 0) + ((y >= cy[c]) ? 2 : 0);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Whether (x,y) is inside cell c.  Such a cell is always opened, whatever
+  // theta: with a large theta, its centre of mass could otherwise be far
+  // enough away for the cell to be used as a whole, with the attraction of
+  // the particle on itself in it.
+  /////////////////////////////////////////////////////////////////////////////
+  private boolean encloses(int c, double x, double y) {
+    return Math.abs(x-cx[c]) <= half[c] && Math.abs(y-cy[c]) <= half[c];
+  }
+
+  private int newChild(int c, int q) {
+    double h = 0.5*half[c];
+    return newCell(cx[c] + (((q & 1) != 0) ? h : -h),
+                   cy[c] + (((q & 2) != 0) ? h : -h),h);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This adds an empty leaf, growing the arrays if necessary.
+  /////////////////////////////////////////////////////////////////////////////
+  private int newCell(double x, double y, double h) {
+    if (ncells == leaf.length) {
+      int size = Math.max(64,2*ncells);
+      child = Arrays.copyOf(child,4*size);
+      first = Arrays.copyOf(first,size);
+      count = Arrays.copyOf(count,size);
+      leaf  = Arrays.copyOf(leaf,size);
+      cx    = Arrays.copyOf(cx,size);
+      cy    = Arrays.copyOf(cy,size);
+      half  = Arrays.copyOf(half,size);
+      mass  = Arrays.copyOf(mass,size);
+      comx  = Arrays.copyOf(comx,size);
+      comy  = Arrays.copyOf(comy,size);
+    }
+    int c = ncells++;
+    Arrays.fill(child,4*c,4*c+4,-1);
+    first[c] = -1;
+    count[c] = 0;
+    leaf[c] = true;
+    cx[c] = x;
+    cy[c] = y;
+    half[c] = h;
+    return c;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This sets (ax[i],ay[i]) to the acceleration of particle i due to the
+  // other particles, for the particles i = order[from], ..., order[to-1]
+  // (0 <= from <= to <= p.n), where the order is that of the tree.  Several
+  // ranges may be done at the same time once the tree is built.
+  /////////////////////////////////////////////////////////////////////////////
+  public void accelerations(ParticleStore p, double G, int from, int to,
+                            double[] ax, double[] ay) {
+    double eps2 = softening*softening;
+    int i;
+    for(int k=from; k<to; k++) {
+      i = order[k];
+      if (ncells == 0) {
+        direct(p,G,eps2,i,ax,ay);
+      } else {
+        walk(p,G,eps2,i,ax,ay);
+      }
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns the potential of particle i due to the other particles,
+  // -G sum m_j/sqrt(r^2+softening^2), with the same approximation as its
+  // acceleration.  The tree must have been built for the current positions.
+  /////////////////////////////////////////////////////////////////////////////
+  public double potential(ParticleStore p, double G, int i) {
+    double eps2 = softening*softening, theta2 = theta*theta;
+    double x = p.x[i], y = p.y[i], phi = 0.0, dx, dy, r2, s;
+    int[] st = stack.get();
+    int sp = 0, c, j;
+    if (ncells == 0) {
+      for(int k=0; k<nsources; k++) {
+        j = sources[k];
+        if (j == i) continue;
+        dx = p.x[j]-x;
+        dy = p.y[j]-y;
+        r2 = dx*dx+dy*dy+eps2;
+        if (r2 > 0.0) phi -= p.m[j]/Math.sqrt(r2);
+      }
+      return G*phi;
+    }
+    st[sp++] = 0;
+    while (sp > 0) {
+      c = st[--sp];
+      if (mass[c] == 0.0) continue;
+      if (leaf[c]) {
+        for(j=first[c]; j>=0; j=next[j]) {
+          if (j == i || p.m[j] == 0.0 || !p.active[j]) continue;
+          dx = p.x[j]-x;
+          dy = p.y[j]-y;
+          r2 = dx*dx+dy*dy+eps2;
+          if (r2 > 0.0) phi -= p.m[j]/Math.sqrt(r2);
+        }
+        continue;
+      }
+      dx = comx[c]-x;
+      dy = comy[c]-y;
+      r2 = dx*dx+dy*dy;
+      s = 2.0*half[c];
+      if (s*s < theta2*r2 && !encloses(c,x,y)) {
+        phi -= mass[c]/Math.sqrt(r2+eps2);
+      } else {
+        for(int q=0; q<4; q++) {
+          if (child[4*c+q] >= 0) st[sp++] = child[4*c+q];
+        }
+      }
+    }
+    return G*phi;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Direct sum over the attracting particles.
+  /////////////////////////////////////////////////////////////////////////////
+  private void direct(ParticleStore p, double G, double eps2, int i,
+                      double[] ax, double[] ay) {
+    double x = p.x[i], y = p.y[i], sx = 0.0, sy = 0.0, dx, dy, r2, k;
+    int j;
+    for(int s=0; s<nsources; s++) {
+      j = sources[s];
+      if (j == i) continue;
+      dx = p.x[j]-x;
+      dy = p.y[j]-y;
+      r2 = dx*dx+dy*dy+eps2;
+      if (r2 == 0.0) continue; // particles on top of each other
+      k = p.m[j]/(r2*Math.sqrt(r2));
+      sx += dx*k;
+      sy += dy*k;
+    }
+    ax[i] = G*sx;
+    ay[i] = G*sy;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Walk down the tree, opening the cells which are too close.
+  /////////////////////////////////////////////////////////////////////////////
+  private void walk(ParticleStore p, double G, double eps2, int i,
+                    double[] ax, double[] ay) {
+    int[] st = stack.get();
+    int sp = 0, c, j;
+    double x = p.x[i], y = p.y[i], sx = 0.0, sy = 0.0, dx, dy, r2, k, s;
+    double theta2 = theta*theta;
+    st[sp++] = 0;
+    while (sp > 0) {
+      c = st[--sp];
+      if (mass[c] == 0.0) continue;
+      if (leaf[c]) {
+        for(j=first[c]; j>=0; j=next[j]) {
+          if (j == i || p.m[j] == 0.0 || !p.active[j]) continue;
+          dx = p.x[j]-x;
+          dy = p.y[j]-y;
+          r2 = dx*dx+dy*dy+eps2;
+          if (r2 == 0.0) continue; // particles on top of each other
+          k = p.m[j]/(r2*Math.sqrt(r2));
+          sx += dx*k;
+          sy += dy*k;
+        }
+        continue;
+      }
+      dx = comx[c]-x;
+      dy = comy[c]-y;
+      r2 = dx*dx+dy*dy;
+      s = 2.0*half[c];
+      if (s*s < theta2*r2 && !encloses(c,x,y)) {
+        r2 += eps2;
+        k = mass[c]/(r2*Math.sqrt(r2));
+        sx += dx*k;
+        sy += dy*k;
+      } else {
+        for(int q=0; q<4; q++) {
+          if (child[4*c+q] >= 0) st[sp++] = child[4*c+q];
+        }
+      }
+    }
+    ax[i] = G*sx;
+    ay[i] = G*sy;
+  }
+}
@@ -0,0 +1,173 @@
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/****************************************************************************
+* Runs a simulation from the command line, without any window, as fast as
+* possible.  The final state is written in the same format as the
+* configuration files, so that it can be reloaded in Orbite.
+*
+* Usage: java Batch config (-steps n | -time t) [-o output] [-events] [-jmx]
+*                   [-record trajectory [-every n]]
+*                   [-checkpoint file [-checkpointEvery n]]
+*
+* The output goes to standard output when -o is not given or is "-".  With
+* -events, impacts and apsis passages are listed on standard error.  With
+* -jmx, the progress and accuracy of the run can be followed in a JMX
+* console (see OrbiteMetrics).  With -record, the state is written to a
+* trajectory file (see TrajectoryWriter) every n steps (default 1).
+* With -checkpoint, a checkpoint (see Checkpoint) is written in the
+* background every n steps (default 100000), and once more at the end; the
+* run can be taken up again by giving the checkpoint as the configuration.
+****************************************************************************/
+
+public class Batch {
+
+  private static final String usage =
+    "Usage: java Batch config (-steps n | -time t) [-o output] [-events] [-jmx] "+
+    "[-record trajectory [-every n]] [-checkpoint file [-checkpointEvery n]]";
+
+  // number of steps between two updates of the metrics:
+  private static final int metricsInterval = 64;
+
+  /////////////////////////////////////////////////////////////////////////////
+  // The main program
+  /////////////////////////////////////////////////////////////////////////////
+  public static void main(String args[]) {
+    // set English locale to avoid things like decimal commas
+    Locale.setDefault(new Locale("en","US"));
+
+    String config = null, output = "-";
+    long nsteps = -1;
+    double tend = -1.0;
+    boolean events = false;
+    OrbiteMetrics metrics = null;
+    String trajectory = null;
+    int every = 1;
+    String checkpoint = null;
+    long checkpointEvery = 100000;
+    try {
+      for(int i=0; i<args.length; i++) {
+        if (args[i].equals("-steps")) {
+          nsteps = Long.parseLong(args[++i]);
+        } else if (args[i].equals("-time")) {
+          tend = Simulation.parseDouble(args[++i]);
+        } else if (args[i].equals("-o")) {
+          output = args[++i];
+        } else if (args[i].equals("-events")) {
+          events = true;
+        } else if (args[i].equals("-jmx")) {
+          metrics = new OrbiteMetrics();
+        } else if (args[i].equals("-record")) {
+          trajectory = args[++i];
+        } else if (args[i].equals("-every")) {
+          every = Integer.parseInt(args[++i]);
+          if (every < 1) throw new IllegalArgumentException(args[i]);
+        } else if (args[i].equals("-checkpoint")) {
+          checkpoint = args[++i];
+        } else if (args[i].equals("-checkpointEvery")) {
+          checkpointEvery = Long.parseLong(args[++i]);
+          if (checkpointEvery < 1) throw new IllegalArgumentException(args[i]);
+        } else if (config == null && !args[i].startsWith("-")) {
+          config = args[i];
+        } else {
+          throw new IllegalArgumentException(args[i]);
+        }
+      }
+      if (config == null || (nsteps < 0) == !(tend >= 0.0))
+        throw new IllegalArgumentException();
+    } catch(Exception e) {
+      System.err.println(usage);
+      System.exit(2);
+    }
+
+    Simulation sim = new Simulation();
+    try {
+      sim.readConfig(config);
+    } catch(Exception e) {
+      System.err.println(e.getMessage());
+      System.exit(1);
+    }
+    if (events && sim.events != null) {
+      sim.events.addListener(new EventListener() {
+        public void eventOccurred(Event e) { System.err.println(e); }
+      });
+    }
+
+    if (metrics != null) metrics.register();
+    if (trajectory != null) {
+      try {
+        sim.recorder = new TrajectoryWriter(trajectory,sim,every);
+      } catch(Exception e) {
+        System.err.println("Unable to write to file \""+trajectory+"\": "+e.getMessage());
+        System.exit(1);
+      }
+    }
+
+    Checkpointer checkpointer = (checkpoint != null) ? new Checkpointer() : null;
+
+    long start = System.nanoTime();
+    long n = run(sim,nsteps,tend,metrics,checkpointer,checkpoint,checkpointEvery);
+    double elapsed = (System.nanoTime()-start)*1.0e-9;
+    if (checkpointer != null) {
+      try {
+        checkpointer.await();
+        Checkpoint.capture(sim).write(checkpoint);
+      } catch(Exception e) {
+        System.err.println("Unable to write to file \""+checkpoint+"\": "+e.getMessage());
+        System.exit(1);
+      }
+    }
+    sim.stepper.shutdown();
+    if (sim.recorder != null) {
+      sim.recorder.close();
+      if (sim.recorder.getError() != null) {
+        System.err.println("Unable to write to file \""+trajectory+"\": "+
+                           sim.recorder.getError().getMessage());
+        System.exit(1);
+      }
+    }
+
+    try {
+      if (output.equals("-")) {
+        sim.writeConfig(new PrintWriter(System.out));
+      } else {
+        sim.writeConfig(output);
+      }
+    } catch(Exception e) {
+      System.err.println(e.getMessage());
+      System.exit(1);
+    }
+
+    System.err.printf("%d steps of %d particles (t = %g) in %.3f s: "+
+                      "%.4g steps/s, %.4g particle-steps/s%n",
+                      n,sim.particles.n,sim.time,elapsed,
+                      n/elapsed,n*(double)sim.particles.n/elapsed);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This takes nsteps steps or, if nsteps < 0, advances the simulation to
+  // time tend, shortening the last step as needed.  It returns the number
+  // of steps taken.  The metrics, if not null, are updated as it goes, and
+  // a checkpoint is handed to the checkpointer, if not null, every
+  // checkpointEvery steps (it is skipped if the previous one is still
+  // being written).
+  /////////////////////////////////////////////////////////////////////////////
+  static long run(Simulation sim, long nsteps, double tend, OrbiteMetrics metrics,
+                  Checkpointer checkpointer, String checkpoint, long checkpointEvery) {
+    long n = 0, start = System.nanoTime();
+    while (nsteps >= 0 ? n < nsteps : sim.time < tend) {
+      if (nsteps >= 0 || sim.time + sim.dt < tend) {
+        sim.step();
+      } else {
+        sim.step(tend-sim.time);
+        sim.time = tend;
+      }
+      n++;
+      if (metrics != null && n % metricsInterval == 0)
+        metrics.update(sim,n,System.nanoTime()-start);
+      if (checkpointer != null && n % checkpointEvery == 0 && !checkpointer.isBusy())
+        checkpointer.submit(Checkpoint.capture(sim),checkpoint);
+    }
+    return n;
+  }
+}
@@ -0,0 +1,83 @@
+/****************************************************************************
+* Hierarchical block time steps: each particle is advanced with steps of
+* dt/2^L, where its level L is chosen from its own time scale, so that
+* particles close to the planet take many small steps while distant ones
+* take a single step of dt.  The levels are chosen again before every
+* step of each particle (so that a burn or a close pass is followed at
+* once), but a particle can only move to a coarser level at a time which
+* is a multiple of the coarser step.  All the particles are therefore
+* back in step at the end of dt.
+*
+* The particles do not interact, so each one goes through its own
+* sub-ticks on its own rather than all of them being swept at every
+* sub-tick.
+****************************************************************************/
+
+public class BlockStepIntegrator extends Integrator {
+
+  // method used for each step:
+  private final Integrator base;
+
+  // accuracy parameter: steps are at most eta times the time scale:
+  public double eta = 0.02;
+
+  // finest level (steps of dt/2^maxLevel):
+  public int maxLevel = 12;
+
+  /////////////////////////////////////////////////////////////////////////////
+  /**
+   * A constructor.
+   *
+   * @param  base  a fixed step integrator (euler, rk4 or a symplectic method)
+   */
+  /////////////////////////////////////////////////////////////////////////////
+  public BlockStepIntegrator(Integrator base) {
+    if (!supports(base)) throw new IllegalArgumentException(base.name());
+    this.base = base.scalar(); // (steps of a single particle)
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns whether block time steps can be used with the given method.
+  /////////////////////////////////////////////////////////////////////////////
+  public static boolean supports(Integrator base) {
+    base = base.scalar();
+    return base instanceof EulerIntegrator || base instanceof RK4Integrator
+        || base instanceof SymplecticIntegrator;
+  }
+
+  public String name() { return base.name(); }
+
+  public void step(Gravity g, ParticleStore p, int from, int to, double dt) {
+    long nticks = 1L << maxLevel, tick, h;
+    double GM = g.G*g.M;
+    int L;
+    for(int i=from; i<to; i++) {
+      if (!p.active[i]) continue;
+      for(tick=0; tick<nticks; tick+=h) {
+        L = level(GM,p.x[i]-g.x0,p.y[i]-g.y0,p.vx[i],p.vy[i],dt);
+        // a step must start at a multiple of itself:
+        h = nticks >> L;
+        while ((tick & (h-1)) != 0) h >>= 1;
+        base.step(g,p,i,i+1,dt*((double) h/nticks));
+      }
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns the level of a particle at (x,y) relative to the planet,
+  // with velocity (vx,vy).  The time scale is the shorter of the dynamical
+  // time sqrt(r^3/GM) and the crossing time r/v.
+  /////////////////////////////////////////////////////////////////////////////
+  private int level(double GM, double x, double y, double vx, double vy, double dt) {
+    double r2 = x*x+y*y;
+    double t2 = Math.min(r2*Math.sqrt(r2)/GM, r2/(vx*vx+vy*vy));
+    double h = dt;
+    int L = 0;
+    // (t2 is the square of the time scale)
+    while (L < maxLevel && h*h > eta*eta*t2) {
+      h *= 0.5;
+      L++;
+    }
+    return L;
+  }
+}
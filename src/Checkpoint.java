@@ -0,0 +1,429 @@
+import graph.Plot;
+import java.awt.Color;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/****************************************************************************
+* The complete state of a simulation, and optionally of the plot showing
+* it (trails and view), saved bit for bit in a binary file so that the run
+* can be taken up again exactly where it was.  Unlike writeConfig, nothing
+* is rounded: the doubles are written as they are, including v, L, the
+* simulated time and the per-particle state of the integrator (e.g. the
+* step sizes of rk45).
+*
+* A checkpoint is taken in two stages: capture() copies the state, which
+* is all that is done on the simulation thread, and write() saves the copy
+* and can be called from another thread (see Checkpointer).  The file is
+* written under a temporary name and then renamed, so that an interrupted
+* write never destroys the previous checkpoint.
+*
+* Format (little endian): "ORBITCKP", int version, then the parameters of
+* the simulation, the particle arrays (each an int length followed by the
+* values), the integrator state, and the plot state if there is one.
+****************************************************************************/
+
+public class Checkpoint {
+
+  static final byte[] magicBytes = {'O','R','B','I','T','C','K','P'};
+  public static final int version = 1;
+
+  // planet, time step and time:
+  private double G, M, x0, y0, planetSize, dt, time;
+
+  // integrator, as in a configuration file:
+  private String integrator;
+  private double tolerance = 1.0e-9, eta = 0.02;
+  private boolean simd, blockSteps;
+  private int maxLevel = 12;
+  private int threads, threshold;
+
+  // N-body mode and events:
+  private boolean nbody, events;
+  private double theta, softening;
+  private int directThreshold;
+
+  private ParticleStore particles;
+  private double[][] integratorState;
+
+  // generation of the simulation captured (not saved):
+  private int generation;
+
+  // plot (null trails = none):
+  private double[] trailsX, trailsY;
+  private int npast;
+  private double xmin, xmax, ymin, ymax;
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This copies the state of sim.  It must be called on the thread which
+  // steps it.
+  /////////////////////////////////////////////////////////////////////////////
+  public static Checkpoint capture(Simulation sim) {
+    Checkpoint c = new Checkpoint();
+    c.G = sim.gravity.G;
+    c.M = sim.gravity.M;
+    c.x0 = sim.gravity.x0;
+    c.y0 = sim.gravity.y0;
+    c.planetSize = sim.planetSize;
+    c.dt = sim.dt;
+    c.time = sim.time;
+    Integrator integrator = sim.integrator;
+    c.integrator = integrator.name();
+    c.simd = integrator.scalar() != integrator;
+    if (integrator.scalar() instanceof DormandPrinceIntegrator) {
+      c.tolerance = ((DormandPrinceIntegrator) integrator.scalar()).tolerance;
+    }
+    if (integrator instanceof BlockStepIntegrator) {
+      BlockStepIntegrator b = (BlockStepIntegrator) integrator;
+      c.blockSteps = true;
+      c.eta = b.eta;
+      c.maxLevel = b.maxLevel;
+    }
+    c.threads = sim.stepper.threads();
+    c.threshold = sim.stepper.threshold;
+    c.nbody = sim.nbody != null;
+    if (c.nbody) {
+      c.theta = sim.nbody.tree.theta;
+      c.directThreshold = sim.nbody.tree.directThreshold;
+      c.softening = sim.nbody.tree.softening;
+    }
+    c.events = sim.events != null;
+    ParticleStore p = sim.particles;
+    c.particles = new ParticleStore(p.n,p.colors.clone());
+    p.copyTo(c.particles);
+    c.integratorState = integrator.saveState(p);
+    c.generation = sim.generation;
+    return c;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This copies the trails and the view of plot.  It must be called on the
+  // thread which draws it.
+  /////////////////////////////////////////////////////////////////////////////
+  public void captureView(Plot plot) {
+    double[][] t = plot.getTrails();
+    trailsX = t[0];
+    trailsY = t[1];
+    npast = plot.getNpast();
+    xmin = plot.xminTarget;
+    xmax = plot.xmaxTarget;
+    ymin = plot.yminTarget;
+    ymax = plot.ymaxTarget;
+  }
+
+  public boolean hasView() { return trailsX != null; }
+
+  public int getGeneration() { return generation; }
+
+  public int getNpast() { return npast; }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This puts the state back into sim, as a new generation.  It must be
+  // called on the thread which steps it.
+  /////////////////////////////////////////////////////////////////////////////
+  public void restore(Simulation sim) {
+    Integrator integrator = Simulation.setup(Integrator.forName(this.integrator),tolerance,
+                                             simd,blockSteps,eta,maxLevel);
+    NBody nbody = null;
+    if (this.nbody) {
+      nbody = new NBody();
+      nbody.tree.theta = theta;
+      nbody.tree.directThreshold = directThreshold;
+      nbody.tree.softening = softening;
+    }
+    ParticleStore p = new ParticleStore(particles.n,particles.colors.clone());
+    particles.copyTo(p);
+    sim.gravity.G = G;
+    sim.gravity.M = M;
+    sim.gravity.x0 = x0;
+    sim.gravity.y0 = y0;
+    sim.planetSize = planetSize;
+    sim.dt = dt;
+    sim.replace(p,integrator,nbody,events,threads,threshold);
+    sim.time = time;
+    if (integratorState != null) integrator.restoreState(p,integratorState);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This puts the trails and the view back into plot, once it shows the
+  // restored particles.  It must be called on the thread which draws it.
+  /////////////////////////////////////////////////////////////////////////////
+  public void restoreView(Plot plot) {
+    if (trailsX == null) return;
+    plot.setTrails(trailsX,trailsY,npast);
+    plot.xminTarget = xmin;
+    plot.xmaxTarget = xmax;
+    plot.yminTarget = ymin;
+    plot.ymaxTarget = ymax;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns whether the file is a checkpoint (rather than e.g. a
+  // configuration file).
+  /////////////////////////////////////////////////////////////////////////////
+  public static boolean isCheckpoint(String filename) {
+    try {
+      RandomAccessFile f = new RandomAccessFile(filename,"r");
+      byte[] m = new byte[magicBytes.length];
+      try {
+        f.readFully(m);
+      } finally {
+        f.close();
+      }
+      return Arrays.equals(m,magicBytes);
+    } catch(IOException e) {
+      return false;
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Writes the checkpoint to a file.  It is written to filename.tmp, forced
+  // to the disk and then renamed, so that a crash at any time leaves either
+  // the previous checkpoint or the new one, complete.
+  /////////////////////////////////////////////////////////////////////////////
+  public void write(String filename) throws IOException {
+    String tmp = filename+".tmp";
+    RandomAccessFile f = new RandomAccessFile(tmp,"rw");
+    try {
+      f.setLength(0);
+      Out out = new Out(f.getChannel());
+      out.bytes(magicBytes);
+      out.putInt(version);
+      out.putDouble(G);
+      out.putDouble(M);
+      out.putDouble(x0);
+      out.putDouble(y0);
+      out.putDouble(planetSize);
+      out.putDouble(dt);
+      out.putDouble(time);
+      out.putString(integrator);
+      out.putDouble(tolerance);
+      out.putBoolean(simd);
+      out.putBoolean(blockSteps);
+      out.putDouble(eta);
+      out.putInt(maxLevel);
+      out.putInt(threads);
+      out.putInt(threshold);
+      out.putBoolean(nbody);
+      out.putDouble(theta);
+      out.putInt(directThreshold);
+      out.putDouble(softening);
+      out.putBoolean(events);
+      ParticleStore p = particles;
+      out.putInt(p.n);
+      out.putDoubles(p.x);
+      out.putDoubles(p.y);
+      out.putDoubles(p.vx);
+      out.putDoubles(p.vy);
+      out.putDoubles(p.v);
+      out.putDoubles(p.L);
+      out.putDoubles(p.m);
+      for(int i=0; i<p.n; i++) out.putBoolean(p.active[i]);
+      for(int i=0; i<p.n; i++) out.putInt(p.colors[i].getRGB());
+      out.putInt(integratorState == null ? -1 : integratorState.length);
+      if (integratorState != null) {
+        for(double[] a : integratorState) out.putDoubles(a);
+      }
+      out.putBoolean(trailsX != null);
+      if (trailsX != null) {
+        out.putInt(npast);
+        out.putDouble(xmin);
+        out.putDouble(xmax);
+        out.putDouble(ymin);
+        out.putDouble(ymax);
+        out.putDoubles(trailsX);
+        out.putDoubles(trailsY);
+      }
+      out.flush();
+      f.getChannel().force(true);
+    } finally {
+      f.close();
+    }
+    Files.move(Paths.get(tmp),Paths.get(filename),StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Reads a checkpoint from a file.
+  /////////////////////////////////////////////////////////////////////////////
+  public static Checkpoint read(String filename) throws IOException {
+    Checkpoint c = new Checkpoint();
+    RandomAccessFile f = new RandomAccessFile(filename,"r");
+    try {
+      In in = new In(f.getChannel());
+      byte[] m = new byte[magicBytes.length];
+      in.bytes(m);
+      if (!Arrays.equals(m,magicBytes))
+        throw new IOException("\""+filename+"\" is not a checkpoint");
+      int v = in.getInt();
+      if (v != version) throw new IOException("Unknown checkpoint version "+v);
+      c.G = in.getDouble();
+      c.M = in.getDouble();
+      c.x0 = in.getDouble();
+      c.y0 = in.getDouble();
+      c.planetSize = in.getDouble();
+      c.dt = in.getDouble();
+      c.time = in.getDouble();
+      c.integrator = in.getString();
+      if (Integrator.forName(c.integrator) == null)
+        throw new IOException("Unknown integrator "+c.integrator);
+      c.tolerance = in.getDouble();
+      c.simd = in.getBoolean();
+      c.blockSteps = in.getBoolean();
+      c.eta = in.getDouble();
+      c.maxLevel = in.getInt();
+      c.threads = in.getInt();
+      c.threshold = in.getInt();
+      c.nbody = in.getBoolean();
+      c.theta = in.getDouble();
+      c.directThreshold = in.getInt();
+      c.softening = in.getDouble();
+      c.events = in.getBoolean();
+      int n = in.getInt();
+      if (n < 0) throw new IOException("Bad checkpoint");
+      ParticleStore p = new ParticleStore(n);
+      in.getDoubles(p.x);
+      in.getDoubles(p.y);
+      in.getDoubles(p.vx);
+      in.getDoubles(p.vy);
+      in.getDoubles(p.v);
+      in.getDoubles(p.L);
+      in.getDoubles(p.m);
+      for(int i=0; i<n; i++) p.active[i] = in.getBoolean();
+      Color color = null;
+      for(int i=0; i<n; i++) {
+        int rgb = in.getInt();
+        // (swarms often repeat a few colours)
+        if (color == null || color.getRGB() != rgb) color = new Color(rgb,true);
+        p.colors[i] = color;
+      }
+      c.particles = p;
+      int k = in.getInt();
+      if (k >= 0) {
+        c.integratorState = new double[k][];
+        for(int j=0; j<k; j++) c.integratorState[j] = in.getDoubles(null);
+      }
+      if (in.getBoolean()) {
+        c.npast = in.getInt();
+        c.xmin = in.getDouble();
+        c.xmax = in.getDouble();
+        c.ymin = in.getDouble();
+        c.ymax = in.getDouble();
+        c.trailsX = in.getDoubles(null);
+        c.trailsY = in.getDoubles(null);
+        if (c.npast < 1 || c.trailsY.length != c.trailsX.length)
+          throw new IOException("Bad checkpoint");
+      }
+    } finally {
+      f.close();
+    }
+    return c;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Buffered little endian output to a file channel.  Arrays of doubles
+  // are copied into the buffer in bulk.
+  /////////////////////////////////////////////////////////////////////////////
+  private static final class Out {
+    private final FileChannel channel;
+    private final ByteBuffer b = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+    Out(FileChannel channel) { this.channel = channel; }
+
+    private void need(int n) throws IOException {
+      if (b.remaining() < n) flush();
+    }
+
+    void flush() throws IOException {
+      b.flip();
+      while (b.hasRemaining()) channel.write(b);
+      b.clear();
+    }
+
+    void bytes(byte[] a) throws IOException { need(a.length); b.put(a); }
+    void putInt(int i) throws IOException { need(4); b.putInt(i); }
+    void putDouble(double d) throws IOException { need(8); b.putDouble(d); }
+    void putBoolean(boolean z) throws IOException { need(1); b.put((byte) (z ? 1 : 0)); }
+
+    void putString(String s) throws IOException {
+      byte[] a = s.getBytes(StandardCharsets.UTF_8);
+      putInt(a.length);
+      bytes(a);
+    }
+
+    void putDoubles(double[] a) throws IOException {
+      putInt(a.length);
+      int off = 0, k;
+      while (off < a.length) {
+        need(8);
+        k = Math.min(b.remaining()/8,a.length-off);
+        b.asDoubleBuffer().put(a,off,k);
+        b.position(b.position()+8*k);
+        off += k;
+      }
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Buffered little endian input from a file channel.
+  /////////////////////////////////////////////////////////////////////////////
+  private static final class In {
+    private final FileChannel channel;
+    private final ByteBuffer b = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+    In(FileChannel channel) {
+      this.channel = channel;
+      b.limit(0);
+    }
+
+    // this makes at least n bytes available in the buffer:
+    private void need(int n) throws IOException {
+      if (b.remaining() >= n) return;
+      b.compact();
+      while (b.position() < n) {
+        if (channel.read(b) < 0) throw new IOException("Unexpected end of checkpoint");
+      }
+      b.flip();
+    }
+
+    void bytes(byte[] a) throws IOException { need(a.length); b.get(a); }
+    int getInt() throws IOException { need(4); return b.getInt(); }
+    double getDouble() throws IOException { need(8); return b.getDouble(); }
+    boolean getBoolean() throws IOException { need(1); return b.get() != 0; }
+
+    String getString() throws IOException {
+      int n = getInt();
+      if (n < 0 || n > 1024) throw new IOException("Bad checkpoint");
+      byte[] a = new byte[n];
+      bytes(a);
+      return new String(a,StandardCharsets.UTF_8);
+    }
+
+    // into a, which must have the length read, or a new array if a is null:
+    double[] getDoubles(double[] a) throws IOException {
+      int n = getInt();
+      if (a == null) {
+        if (n < 0) throw new IOException("Bad checkpoint");
+        a = new double[n];
+      } else if (n != a.length) {
+        throw new IOException("Bad checkpoint");
+      }
+      int off = 0, k;
+      while (off < n) {
+        need(8);
+        k = Math.min(b.remaining()/8,n-off);
+        b.asDoubleBuffer().get(a,off,k);
+        b.position(b.position()+8*k);
+        off += k;
+      }
+      return a;
+    }
+  }
+}
@@ -0,0 +1,87 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/****************************************************************************
+* Writes checkpoints on a background thread, so that the thread which
+* steps the simulation only pays for the copy made by Checkpoint.capture.
+* One checkpoint is written at a time: a checkpoint handed over while the
+* previous one is still being written is dropped (the next one will be
+* more recent anyway).
+****************************************************************************/
+
+public class Checkpointer {
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Something which adds its own state to a checkpoint before it is
+  // written (e.g. the window, with the trails and the view).  It is called
+  // on the writing thread, for the checkpoints which have no view yet.
+  /////////////////////////////////////////////////////////////////////////////
+  public interface ViewSource {
+    void capture(Checkpoint c);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Something told on the writing thread when a checkpoint has been written
+  // to filename, or could not be (error != null).
+  /////////////////////////////////////////////////////////////////////////////
+  public interface Listener {
+    void written(String filename, IOException error);
+  }
+
+  private final AtomicBoolean busy = new AtomicBoolean(false);
+  private volatile ViewSource view = null;
+  private volatile Listener listener = null;
+  private volatile IOException error = null;
+  private volatile long written = 0;
+  private Thread thread = null;
+
+  public void setViewSource(ViewSource view) { this.view = view; }
+
+  public void setListener(Listener listener) { this.listener = listener; }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This starts writing c to filename in the background, and returns true,
+  // or returns false if the previous checkpoint is still being written.
+  /////////////////////////////////////////////////////////////////////////////
+  public boolean submit(final Checkpoint c, final String filename) {
+    if (!busy.compareAndSet(false,true)) return false;
+    Thread t = new Thread("Checkpoint") {
+      public void run() {
+        IOException failure = null;
+        try {
+          ViewSource v = view;
+          if (v != null && !c.hasView()) v.capture(c);
+          c.write(filename);
+          written++;
+        } catch(IOException e) {
+          failure = e;
+        } finally {
+          error = failure;
+          busy.set(false);
+        }
+        Listener l = listener;
+        if (l != null) l.written(filename,failure);
+      }
+    };
+    t.setDaemon(true);
+    synchronized(this) { thread = t; }
+    t.start();
+    return true;
+  }
+
+  public boolean isBusy() { return busy.get(); }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This waits for the checkpoint being written, if any.
+  /////////////////////////////////////////////////////////////////////////////
+  public void await() throws InterruptedException {
+    Thread t;
+    synchronized(this) { t = thread; }
+    if (t != null) t.join();
+  }
+
+  // the number of checkpoints written, and the error of the last one:
+  public long written() { return written; }
+
+  public IOException getError() { return error; }
+}
@@ -0,0 +1,453 @@
+import java.awt.Color;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/****************************************************************************
+* Reads configuration files (see Simulation.readConfig for the format)
+* from memory-mapped windows of the file, copied in bulk a chunk at a
+* time, without making a String of each line: numbers are parsed from the
+* bytes, so that files of millions of projectiles load at the speed of the
+* disk.  As before, "#" starts a comment, and "d" or "D" may stand for the
+* exponent marker and "," for the decimal point.
+*
+* The lines of the projectiles are split into chunks of about chunkBytes,
+* which are parsed in parallel (see ParallelStepper.forEach): the lines of
+* each chunk are counted first, so that every chunk knows the number of its
+* first projectile and line.
+*
+* Errors are reported as a SyntaxException, with the number of the line.
+****************************************************************************/
+
+public class ConfigParser {
+
+  // size of the windows mapped at a time, and of the chunks parsed in
+  // parallel; below parallelBytes of projectiles, everything is parsed on
+  // the calling thread:
+  private static final long windowBytes = 256L << 20;
+  private static final int chunkBytes = 1 << 20;
+  private static final long parallelBytes = 4L << 20;
+
+  // the lines before the projectiles must fit in:
+  private static final int headerBytes = 1 << 20;
+
+  // exact powers of ten:
+  private static final double[] powers = new double[23];
+  static {
+    powers[0] = 1.0;
+    for(int i=1; i<powers.length; i++) powers[i] = 10.0*powers[i-1];
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // An error in a configuration file, at a given line.
+  /////////////////////////////////////////////////////////////////////////////
+  public static class SyntaxException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public final long line;
+
+    public SyntaxException(String filename, long line, String message) {
+      super("Unable to read file \""+filename+"\", line "+line+": "+message);
+      this.line = line;
+    }
+  }
+
+  private final String filename;
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final long size;
+
+  // the start of the file, and the current line in it (loaded = its
+  // number is line and it has not been used up yet):
+  private final Cursor header;
+  private long line = 0;
+  private boolean loaded = false;
+
+  /////////////////////////////////////////////////////////////////////////////
+  /**
+   * A constructor, which opens the file.
+   *
+   * @param  filename  the configuration file
+   */
+  /////////////////////////////////////////////////////////////////////////////
+  public ConfigParser(String filename) throws IOException {
+    this.filename = filename;
+    file = new RandomAccessFile(filename,"r");
+    try {
+      channel = file.getChannel();
+      size = channel.size();
+      int n = (int) Math.min(size,headerBytes);
+      header = new Cursor(load(channel.map(FileChannel.MapMode.READ_ONLY,0,n),0,n,null),n);
+    } catch(IOException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns an error at the current line.
+  /////////////////////////////////////////////////////////////////////////////
+  public SyntaxException error(String message) {
+    return new SyntaxException(filename,Math.max(line,1),message);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This makes the next line the current one, unless the current one has
+  // not been used up yet.
+  /////////////////////////////////////////////////////////////////////////////
+  private void load() throws IOException {
+    if (loaded) return;
+    line++;
+    if (!header.line()) throw error("unexpected end of file");
+    if (header.next > header.limit && header.limit < size) throw error("line too long");
+    loaded = true;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This reads a line holding a single number.
+  /////////////////////////////////////////////////////////////////////////////
+  public double number() throws IOException {
+    load();
+    if (!header.more()) throw error("a number is missing");
+    try {
+      double d = header.number();
+      if (header.more()) throw new IllegalArgumentException("unexpected \""+header.word()+"\"");
+      loaded = false;
+      return d;
+    } catch(IllegalArgumentException e) {
+      throw error(e.getMessage());
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This reads a line holding a single integer.
+  /////////////////////////////////////////////////////////////////////////////
+  public int integer() throws IOException {
+    load();
+    if (!header.more()) throw error("the number of projectiles is missing");
+    try {
+      int i = header.integer();
+      if (header.more()) throw new IllegalArgumentException("unexpected \""+header.word()+"\"");
+      loaded = false;
+      return i;
+    } catch(IllegalArgumentException e) {
+      throw error(e.getMessage());
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns whether the next line starts with a keyword (a letter),
+  // which can then be read with word(), followed by endLine().
+  /////////////////////////////////////////////////////////////////////////////
+  public boolean keyword() throws IOException {
+    load();
+    return header.more() && header.letter();
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This reads the next word of the current line.
+  /////////////////////////////////////////////////////////////////////////////
+  public String word() throws IOException {
+    load();
+    if (!header.more()) throw error("a value is missing");
+    return header.word();
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This ends the current line (what is left of it is ignored).
+  /////////////////////////////////////////////////////////////////////////////
+  public void endLine() { loaded = false; }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This reads the p.n projectiles which follow, one per line:
+  // x y vx vy colour [mass].  What follows them is ignored.
+  //
+  // @param  threads  number of threads (0 = one per available processor)
+  /////////////////////////////////////////////////////////////////////////////
+  public void particles(final ParticleStore p, int threads) throws IOException {
+    long start = header.next;
+    long first = line+1; // line of the next projectile
+    int done = 0;
+    ParallelStepper stepper = new ParallelStepper(size-start >= parallelBytes ? threads : 1,1);
+    try {
+      while (done < p.n) {
+        if (start >= size) {
+          throw new SyntaxException(filename,first,"there are "+done+" projectiles instead of "+p.n);
+        }
+        long len = Math.min(windowBytes,size-start);
+        final ByteBuffer w = channel.map(FileChannel.MapMode.READ_ONLY,start,len);
+        // (a window other than the last one ends with a complete line)
+        int end = (int) len;
+        if (start+len < size) {
+          while (end > 0 && w.get(end-1) != '\n') end--;
+          if (end == 0) throw new SyntaxException(filename,first,"line too long");
+        }
+        // chunks, which start at the beginning of a line:
+        final int nchunks = Math.max(1,end/chunkBytes);
+        final int[] from = new int[nchunks+1];
+        for(int k=1; k<nchunks; k++) {
+          int i = Math.max(from[k-1],(int) ((long) k*end/nchunks));
+          while (i < end && w.get(i-1) != '\n') i++;
+          from[k] = i;
+        }
+        from[nchunks] = end;
+        // number of lines of each chunk, then number of the first projectile
+        // and the first line of each chunk:
+        final int[] lines = new int[nchunks];
+        stepper.forEach(nchunks,new ParallelStepper.Range() {
+          public void run(int k0, int k1) {
+            byte[] a = null;
+            for(int k=k0; k<k1; k++) {
+              a = load(w,from[k],from[k+1],a);
+              lines[k] = countLines(a,from[k+1]-from[k]);
+            }
+          }
+        });
+        final int[] index = new int[nchunks];
+        final long[] lineOf = new long[nchunks];
+        long total = 0;
+        for(int k=0; k<nchunks; k++) {
+          index[k] = (int) Math.min(p.n,done+total);
+          lineOf[k] = first+total;
+          total += lines[k];
+        }
+        final long[] errorLine = new long[nchunks];
+        final String[] errors = new String[nchunks];
+        stepper.forEach(nchunks,new ParallelStepper.Range() {
+          public void run(int k0, int k1) {
+            byte[] a = null;
+            for(int k=k0; k<k1; k++) {
+              a = load(w,from[k],from[k+1],a);
+              parse(new Cursor(a,from[k+1]-from[k]),p,index[k],lineOf[k],k,errorLine,errors);
+            }
+          }
+        });
+        for(int k=0; k<nchunks; k++) {
+          if (errors[k] != null) throw new SyntaxException(filename,errorLine[k],errors[k]);
+        }
+        done = (int) Math.min(p.n,done+total);
+        first += total;
+        start += end;
+      }
+    } finally {
+      stepper.shutdown();
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This copies bytes from, ..., to-1 of w to the start of a, or of a new
+  // array if a is too small, and returns it.
+  /////////////////////////////////////////////////////////////////////////////
+  private static byte[] load(ByteBuffer w, int from, int to, byte[] a) {
+    if (a == null || a.length < to-from) a = new byte[to-from];
+    w.get(from,a,0,to-from);
+    return a;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns the number of lines in the first n bytes of a, the last
+  // one of which may have no end of line (at the end of the file).
+  /////////////////////////////////////////////////////////////////////////////
+  private static int countLines(byte[] a, int n) {
+    int lines = 0;
+    for(int i=0; i<n; i++) {
+      if (a[i] == '\n') lines++;
+    }
+    if (n > 0 && a[n-1] != '\n') lines++;
+    return lines;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This parses the lines of a chunk, which starts with projectile i and
+  // line ln, until the end of the chunk or projectile p.n.  The first
+  // error, if any, is put in errors[k] and its line in errorLine[k].
+  /////////////////////////////////////////////////////////////////////////////
+  private static void parse(Cursor c, ParticleStore p, int i, long ln,
+                            int k, long[] errorLine, String[] errors) {
+    // recent colours (the files often repeat a few of them):
+    Color[] colors = new Color[64];
+    int[] rgbs = new int[64];
+    int rgb, h;
+    try {
+      while (i < p.n && c.line()) {
+        if (!c.more()) throw new IllegalArgumentException("a projectile is missing");
+        p.x[i] = c.number();
+        if (!c.more()) throw new IllegalArgumentException("y is missing");
+        p.y[i] = c.number();
+        if (!c.more()) throw new IllegalArgumentException("vx is missing");
+        p.vx[i] = c.number();
+        if (!c.more()) throw new IllegalArgumentException("vy is missing");
+        p.vy[i] = c.number();
+        if (!c.more()) throw new IllegalArgumentException("the colour is missing");
+        rgb = c.integer();
+        h = (rgb*0x9E3779B9) >>> 26;
+        if (colors[h] == null || rgbs[h] != rgb) {
+          colors[h] = new Color(rgb);
+          rgbs[h] = rgb;
+        }
+        p.colors[i] = colors[h];
+        if (c.more()) p.m[i] = c.number();
+        i++;
+        ln++;
+      }
+    } catch(IllegalArgumentException e) {
+      errorLine[k] = ln;
+      errors[k] = e.getMessage();
+    }
+  }
+
+  public void close() throws IOException { file.close(); }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Reads the words of the lines of the first limit bytes of an array.
+  // Errors are thrown as IllegalArgumentException.
+  /////////////////////////////////////////////////////////////////////////////
+  private static final class Cursor {
+    private final byte[] b;
+    final int limit;
+
+    // position, end of the words of the current line (before any
+    // comment), and start of the next line:
+    int pos, end, next;
+
+    Cursor(byte[] b, int limit) {
+      this.b = b;
+      this.limit = limit;
+    }
+
+    // this moves to the next line, if there is one:
+    boolean line() {
+      int i = next;
+      if (i >= limit) return false;
+      int hash = -1;
+      byte c;
+      while (i < limit && (c = b[i]) != '\n') {
+        if (c == '#' && hash < 0) hash = i;
+        i++;
+      }
+      pos = next;
+      end = (hash >= 0) ? hash : i;
+      next = i+1;
+      return true;
+    }
+
+    // this skips blanks, and returns whether there is a word left:
+    boolean more() {
+      byte c;
+      while (pos < end && ((c = b[pos]) == ' ' || c == '\t' || c == '\r')) pos++;
+      return pos < end;
+    }
+
+    private boolean blank(int i) {
+      if (i >= end) return true;
+      byte c = b[i];
+      return c == ' ' || c == '\t' || c == '\r';
+    }
+
+    boolean letter() {
+      int c = b[pos] | 32;
+      return c >= 'a' && c <= 'z';
+    }
+
+    String word() {
+      int i = pos;
+      while (!blank(pos)) pos++;
+      return new String(b,i,pos-i,StandardCharsets.UTF_8);
+    }
+
+    int integer() {
+      int i = pos;
+      boolean negative = false;
+      byte c = b[pos];
+      if (c == '-' || c == '+') {
+        negative = (c == '-');
+        pos++;
+      }
+      long n = 0;
+      int digits = 0;
+      while (pos < end && (c = b[pos]) >= '0' && c <= '9') {
+        n = 10*n + (c-'0');
+        if (n > 0x80000000L) break;
+        digits++;
+        pos++;
+      }
+      if (negative) n = -n;
+      if (digits == 0 || !blank(pos) || n < Integer.MIN_VALUE || n > Integer.MAX_VALUE) {
+        pos = i;
+        throw new IllegalArgumentException("\""+word()+"\" is not an integer");
+      }
+      return (int) n;
+    }
+
+    // the numbers with at most 15 significant digits and a power of ten up
+    // to 22 are exact quotients or products of two doubles, so they are
+    // computed at once, and correctly rounded; the others, and the special
+    // values, go through Double.parseDouble:
+    double number() {
+      int i = pos;
+      boolean negative = false;
+      byte c = b[pos];
+      if (c == '-' || c == '+') {
+        negative = (c == '-');
+        pos++;
+      }
+      long m = 0;
+      int digits = 0, exponent = 0;
+      boolean any = false, exact = true;
+      while (pos < end && (c = b[pos]) >= '0' && c <= '9') {
+        any = true;
+        if (digits < 18) {
+          m = 10*m + (c-'0');
+          if (m != 0) digits++;
+        } else {
+          exponent++;
+          exact = false;
+        }
+        pos++;
+      }
+      if (pos < end && (c == '.' || c == ',')) {
+        pos++;
+        while (pos < end && (c = b[pos]) >= '0' && c <= '9') {
+          any = true;
+          if (digits < 18) {
+            m = 10*m + (c-'0');
+            if (m != 0) digits++;
+            exponent--;
+          } else {
+            exact = false;
+          }
+          pos++;
+        }
+      }
+      if (any && pos < end && (c == 'e' || c == 'E' || c == 'd' || c == 'D')) {
+        pos++;
+        boolean minus = false;
+        if (pos < end && ((c = b[pos]) == '-' || c == '+')) {
+          minus = (c == '-');
+          pos++;
+        }
+        int e = 0;
+        any = false;
+        while (pos < end && (c = b[pos]) >= '0' && c <= '9') {
+          any = true;
+          e = Math.min(10*e + (c-'0'),100000);
+          pos++;
+        }
+        exponent += minus ? -e : e;
+      }
+      if (any && blank(pos) && exact && digits <= 15 && Math.abs(exponent) <= 22) {
+        double d = (exponent < 0) ? m/powers[-exponent] : m*powers[exponent];
+        return negative ? -d : d;
+      }
+      pos = i;
+      String s = word();
+      try {
+        return Double.parseDouble(s.replace('d','E').replace('D','E').replace(',','.'));
+      } catch(NumberFormatException e) {
+        throw new IllegalArgumentException("\""+s+"\" is not a number");
+      }
+    }
+  }
+}
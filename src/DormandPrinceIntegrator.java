@@ -0,0 +1,150 @@
+/****************************************************************************
+* This applies the embedded Dormand-Prince 5(4) Runge-Kutta method with an
+* adaptive step size for each particle.  Each call to step advances every
+* particle by exactly dt (i.e. to the next frame), using as many substeps
+* as its local error requires; dt is therefore also the largest step
+* allowed.  The step size of each particle is remembered from one call to
+* the next.
+****************************************************************************/
+
+public class DormandPrinceIntegrator extends Integrator {
+
+  // Butcher tableau:
+  private static final double
+    a21 = 1.0/5.0,
+    a31 = 3.0/40.0,       a32 = 9.0/40.0,
+    a41 = 44.0/45.0,      a42 = -56.0/15.0,      a43 = 32.0/9.0,
+    a51 = 19372.0/6561.0, a52 = -25360.0/2187.0, a53 = 64448.0/6561.0,
+    a54 = -212.0/729.0,
+    a61 = 9017.0/3168.0,  a62 = -355.0/33.0,     a63 = 46732.0/5247.0,
+    a64 = 49.0/176.0,     a65 = -5103.0/18656.0,
+    a71 = 35.0/384.0,     a73 = 500.0/1113.0,    a74 = 125.0/192.0,
+    a75 = -2187.0/6784.0, a76 = 11.0/84.0;
+
+  // difference between the fifth and fourth order weights:
+  private static final double
+    e1 = 71.0/57600.0,    e3 = -71.0/16695.0,    e4 = 71.0/1920.0,
+    e5 = -17253.0/339200.0, e6 = 22.0/525.0,     e7 = -1.0/40.0;
+
+  // step size controller:
+  private static final double safety = 0.9, minScale = 0.2, maxScale = 5.0;
+
+  // relative and absolute error tolerance:
+  public double tolerance = 1.0e-9;
+
+  // current step size for each particle (0 = not yet chosen):
+  private double[] h = new double[0];
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Scratch arrays used by the method, one set per thread.
+  /////////////////////////////////////////////////////////////////////////////
+  private static final class Scratch {
+    final double[] y = new double[4];
+    final double[] ynew = new double[4];
+    final double[] tmp = new double[4];
+    final double[] k1 = new double[4];
+    final double[] k2 = new double[4];
+    final double[] k3 = new double[4];
+    final double[] k4 = new double[4];
+    final double[] k5 = new double[4];
+    final double[] k6 = new double[4];
+    final double[] k7 = new double[4];
+  }
+
+  private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+    protected Scratch initialValue() { return new Scratch(); }
+  };
+
+  public String name() { return "rk45"; }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This makes sure there is a step size for each particle.
+  /////////////////////////////////////////////////////////////////////////////
+  public void prepare(ParticleStore p) {
+    if (h.length != p.n) h = new double[p.n];
+  }
+
+  public double[][] saveState(ParticleStore p) {
+    return (h.length == p.n) ? new double[][] {h.clone()} : null;
+  }
+
+  public void restoreState(ParticleStore p, double[][] state) {
+    if (state.length == 1 && state[0].length == p.n) h = state[0].clone();
+  }
+
+  public void step(Gravity g, ParticleStore p, int from, int to, double dt) {
+    Scratch s = scratch.get();
+    for(int i=from; i<to; i++) {
+      if (!p.active[i]) continue;
+      p.load(i,s.y);
+      if (h[i] <= 0.0 || h[i] > dt) h[i] = dt;
+      h[i] = advance(g,s,dt,h[i],tolerance);
+      p.store(i,s.y);
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This advances s.y by a time T, starting with a step size h, and returns
+  // the step size to use next time.
+  /////////////////////////////////////////////////////////////////////////////
+  private static double advance(Gravity g, Scratch s, double T, double h,
+                                double tol) {
+    double t = 0.0, hstep, err, scale;
+    boolean last;
+    g.F(s.y,s.k1);
+    while (t < T) {
+      last = (t + h >= T);
+      hstep = last ? T - t : h;
+      err = trial(g,s,hstep,tol);
+
+      // accept the step if the error is small enough, or if the step
+      // can no longer be reduced meaningfully:
+      if (err <= 1.0 || hstep <= 1.0e-12*T) {
+        t = last ? T : t + hstep;
+        System.arraycopy(s.ynew,0,s.y,0,4);
+        System.arraycopy(s.k7,0,s.k1,0,4); // first same as last
+        scale = (err == 0.0) ? maxScale : safety*Math.pow(err,-0.2);
+        scale = Math.min(maxScale,Math.max(1.0,scale));
+        // a truncated final step says little about the step size:
+        if (!last) h = Math.min(T,hstep*scale);
+      } else {
+        scale = Math.max(minScale,safety*Math.pow(err,-0.2));
+        h = hstep*scale;
+      }
+    }
+    return h;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This takes a trial step of size h from s.y (with s.k1 = F(s.y)), stores
+  // the fifth order solution in s.ynew and F(s.ynew) in s.k7, and returns
+  // the scaled error estimate.
+  /////////////////////////////////////////////////////////////////////////////
+  private static double trial(Gravity g, Scratch s, double h, double tol) {
+    double[] y = s.y, tmp = s.tmp;
+    double[] k1 = s.k1, k2 = s.k2, k3 = s.k3, k4 = s.k4, k5 = s.k5, k6 = s.k6;
+    int i;
+    for(i=0; i<4; i++) tmp[i] = y[i] + h*a21*k1[i];
+    g.F(tmp,k2);
+    for(i=0; i<4; i++) tmp[i] = y[i] + h*(a31*k1[i]+a32*k2[i]);
+    g.F(tmp,k3);
+    for(i=0; i<4; i++) tmp[i] = y[i] + h*(a41*k1[i]+a42*k2[i]+a43*k3[i]);
+    g.F(tmp,k4);
+    for(i=0; i<4; i++) tmp[i] = y[i] + h*(a51*k1[i]+a52*k2[i]+a53*k3[i]+a54*k4[i]);
+    g.F(tmp,k5);
+    for(i=0; i<4; i++) tmp[i] = y[i] + h*(a61*k1[i]+a62*k2[i]+a63*k3[i]+a64*k4[i]
+                                          +a65*k5[i]);
+    g.F(tmp,k6);
+    for(i=0; i<4; i++) s.ynew[i] = y[i] + h*(a71*k1[i]+a73*k3[i]+a74*k4[i]+a75*k5[i]
+                                             +a76*k6[i]);
+    g.F(s.ynew,s.k7);
+
+    double err = 0.0, e, sc;
+    for(i=0; i<4; i++) {
+      e = h*(e1*k1[i]+e3*k3[i]+e4*k4[i]+e5*k5[i]+e6*k6[i]+e7*s.k7[i]);
+      sc = tol*(1.0+Math.max(Math.abs(y[i]),Math.abs(s.ynew[i])));
+      err += (e/sc)*(e/sc);
+    }
+    return Math.sqrt(err/4.0);
+  }
+}
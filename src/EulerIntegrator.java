@@ -0,0 +1,24 @@
+/****************************************************************************
+* This applies an Euler integration method
+****************************************************************************/
+
+public class EulerIntegrator extends Integrator {
+
+  private static final ThreadLocal<double[][]> scratch = new ThreadLocal<double[][]>() {
+    protected double[][] initialValue() { return new double[2][4]; }
+  };
+
+  public String name() { return "euler"; }
+
+  public void step(Gravity g, ParticleStore p, int from, int to, double dt) {
+    double[][] s = scratch.get();
+    double[] xx = s[0], k = s[1];
+    for(int i=from; i<to; i++) {
+      if (!p.active[i]) continue;
+      p.load(i,xx);
+      g.F(xx,k);
+      for(int j=0; j<4; j++) xx[j] += dt*k[j];
+      p.store(i,xx);
+    }
+  }
+}
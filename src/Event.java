@@ -0,0 +1,36 @@
+/****************************************************************************
+* Something which happened to a projectile during a step, located in time
+* within the step (see EventDetector).
+****************************************************************************/
+
+public class Event {
+
+  // kinds of events:
+  public static final int IMPACT = 0, PERIAPSIS = 1, APOAPSIS = 2;
+  private static final String[] names = {"impact", "periapsis", "apoapsis"};
+
+  public final int type;
+
+  // index of the particle:
+  public final int particle;
+
+  // time, position and velocity of the particle at the event:
+  public final double time, x, y, vx, vy;
+
+  public Event(int type, int particle, double time, double x, double y,
+               double vx, double vy) {
+    this.type = type;
+    this.particle = particle;
+    this.time = time;
+    this.x = x;
+    this.y = y;
+    this.vx = vx;
+    this.vy = vy;
+  }
+
+  public String name() { return names[type]; }
+
+  public String toString() {
+    return String.format("%.10g %s %d %g %g %g %g",time,name(),particle,x,y,vx,vy);
+  }
+}
@@ -0,0 +1,396 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.StampedLock;
+
+/****************************************************************************
+* Finds the events of each step: impacts on the planet (r - R changes
+* sign), periapsis and apoapsis passages (r.v changes sign from negative to
+* positive, or from positive to negative).  The state of the particles is
+* saved before the step, and the time of an event is found by root finding
+* on the cubic Hermite interpolation between the states before and after
+* the step.  A particle which hits the planet is put back where it hit it
+* and deactivated, so that it is no longer integrated.
+*
+* The particles are looked at in chunks on the ParallelStepper of the
+* simulation.  Each thread buffers the events of its chunks, without any
+* lock, and the chunks are merged on the simulation thread once they are
+* all done, in the order of the particles, so that the events come out as
+* if they had been found by a single loop.  The merge counts them, keeps
+* the most recent ones in a log held in arrays of primitives, and passes
+* them to the listeners, if any; once the buffers have grown, finding
+* events allocates nothing.
+*
+* Only the simulation thread writes the log.  Other threads (e.g. the
+* window or JMX) read it with optimistic reads of a StampedLock, and copy
+* it again if it was written meanwhile, so they never hold up a step.
+****************************************************************************/
+
+public class EventDetector {
+
+  // kinds of functions whose roots are looked for:
+  private static final int RADIUS = 0, RADIAL_VELOCITY = 1;
+
+  private static final int logSize = 1000;
+
+  // state at the start of the step, relative to the planet for positions:
+  private double[] x0 = new double[0], y0 = new double[0];
+  private double[] vx0 = new double[0], vy0 = new double[0];
+
+  private final List<EventListener> listeners = new CopyOnWriteArrayList<EventListener>();
+
+  // the most recent events (a ring buffer) and the number of each kind,
+  // written by the simulation thread under the write lock:
+  private final int[] logType = new int[logSize], logParticle = new int[logSize];
+  private final double[] logTime = new double[logSize];
+  private final double[] logX = new double[logSize], logY = new double[logSize];
+  private final double[] logVx = new double[logSize], logVy = new double[logSize];
+  private int head = 0, nlog = 0;
+  private final long[] counts = new long[3];
+  private final StampedLock lock = new StampedLock();
+
+  // the step being looked at:
+  private Gravity g;
+  private ParticleStore p;
+  private double t0, h, R2;
+
+  // the work on a range of particles, made once so that a step allocates
+  // nothing:
+  private final ParallelStepper.Range saveRange = new ParallelStepper.Range() {
+    public void run(int from, int to) { save(from,to); }
+  };
+  private final ParallelStepper.Range findRange = new ParallelStepper.Range() {
+    public void run(int from, int to) { find(from,to); }
+  };
+
+  // the locator and event buffers of each thread which has looked for
+  // events, and the chunks of the step being merged, sorted by their first
+  // particle (first particle << 32 | index in segLocator and segIndex):
+  private final List<Locator> all = new CopyOnWriteArrayList<Locator>();
+  private final ThreadLocal<Locator> locators = new ThreadLocal<Locator>() {
+    protected Locator initialValue() {
+      Locator l = new Locator(EventDetector.this);
+      all.add(l);
+      return l;
+    }
+  };
+  private long[] segKey = new long[0];
+  private int[] segLocator = new int[0], segIndex = new int[0];
+
+  public void addListener(EventListener l) { listeners.add(l); }
+
+  public void removeListener(EventListener l) { listeners.remove(l); }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This saves the state of the particles before a step.
+  /////////////////////////////////////////////////////////////////////////////
+  public void begin(Gravity g, ParticleStore p, ParallelStepper stepper) {
+    int n = p.n;
+    if (x0.length != n) {
+      x0 = new double[n]; y0 = new double[n];
+      vx0 = new double[n]; vy0 = new double[n];
+    }
+    this.g = g;
+    this.p = p;
+    stepper.forEach(n,saveRange);
+  }
+
+  private void save(int from, int to) {
+    for(int k=from; k<to; k++) {
+      x0[k] = p.x[k]-g.x0;
+      y0[k] = p.y[k]-g.y0;
+    }
+    System.arraycopy(p.vx,from,vx0,from,to-from);
+    System.arraycopy(p.vy,from,vy0,from,to-from);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  /**
+   * This looks for events in a step which has just been taken.
+   *
+   * @param  g        gravitational field
+   * @param  p        particles, in their state after the step
+   * @param  R        radius of the planet
+   * @param  t0       time at the start of the step
+   * @param  dt       length of the step
+   * @param  stepper  where to look at the particles in parallel
+   */
+  /////////////////////////////////////////////////////////////////////////////
+  public void end(Gravity g, ParticleStore p, double R, double t0, double dt,
+                  ParallelStepper stepper) {
+    this.g = g;
+    this.p = p;
+    this.t0 = t0;
+    this.h = dt;
+    this.R2 = R*R;
+    stepper.forEach(p.n,findRange);
+    merge();
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This looks for the events of particles from, ..., to-1, and buffers
+  // them as a chunk of the locator of the current thread.
+  /////////////////////////////////////////////////////////////////////////////
+  private void find(int from, int to) {
+    Locator l = locators.get();
+    int start = l.nev;
+    double r02, r12, g0, g1, s, sp;
+    for(int i=from; i<to; i++) {
+      if (!p.active[i]) continue;
+      l.i = i;
+      l.x1 = p.x[i]-g.x0;
+      l.y1 = p.y[i]-g.y0;
+      l.vx1 = p.vx[i];
+      l.vy1 = p.vy[i];
+      r02 = x0[i]*x0[i]+y0[i]*y0[i];
+      r12 = l.x1*l.x1+l.y1*l.y1;
+      g0 = x0[i]*vx0[i]+y0[i]*vy0[i];
+      g1 = l.x1*l.vx1+l.y1*l.vy1;
+      s = -1.0;
+      if (r12 < R2) {
+        s = (r02 < R2) ? 0.0 : l.root(RADIUS,1.0);
+      } else if (g0 < 0.0 && g1 >= 0.0) {
+        sp = l.root(RADIAL_VELOCITY,1.0);
+        if (l.f(RADIUS,sp) < 0.0) {
+          // the particle went through the planet before its periapsis:
+          s = (r02 < R2) ? 0.0 : l.root(RADIUS,sp);
+        } else {
+          fire(l,Event.PERIAPSIS,sp);
+        }
+      } else if (g0 > 0.0 && g1 <= 0.0) {
+        fire(l,Event.APOAPSIS,l.root(RADIAL_VELOCITY,1.0));
+      }
+      if (s >= 0.0) {
+        fire(l,Event.IMPACT,s);
+        p.x[i] = l.x;
+        p.y[i] = l.y;
+        p.vx[i] = 0.0;
+        p.vy[i] = 0.0;
+        p.active[i] = false;
+      }
+    }
+    if (l.nev > start) l.chunk(from,start);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This buffers an event of the particle being located by l at a fraction
+  // s of the step, leaving its position in l.x, l.y.
+  /////////////////////////////////////////////////////////////////////////////
+  private void fire(Locator l, int type, double s) {
+    int i = l.i;
+    l.x = Hermite.position(x0[i],vx0[i],l.x1,l.vx1,h,s)+g.x0;
+    l.y = Hermite.position(y0[i],vy0[i],l.y1,l.vy1,h,s)+g.y0;
+    l.add(type,t0+s*h,
+          Hermite.velocity(x0[i],vx0[i],l.x1,l.vx1,h,s),
+          Hermite.velocity(y0[i],vy0[i],l.y1,l.vy1,h,s));
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This adds the chunks buffered by all the threads to the log, in the
+  // order of their first particle, passes their events to the listeners
+  // and empties the buffers.  It runs on the simulation thread, once the
+  // chunks are all done.
+  /////////////////////////////////////////////////////////////////////////////
+  private void merge() {
+    int nlocators = all.size(), nseg = 0, k, s, e, q;
+    Locator l;
+    for(k=0; k<nlocators; k++) nseg += all.get(k).nseg;
+    if (nseg == 0) return;
+    if (segKey.length < nseg) {
+      segKey = new long[2*nseg];
+      segLocator = new int[2*nseg];
+      segIndex = new int[2*nseg];
+    }
+    nseg = 0;
+    for(k=0; k<nlocators; k++) {
+      l = all.get(k);
+      for(s=0; s<l.nseg; s++) {
+        segKey[nseg] = ((long) l.segFrom[s] << 32) | nseg;
+        segLocator[nseg] = k;
+        segIndex[nseg] = s;
+        nseg++;
+      }
+    }
+    Arrays.sort(segKey,0,nseg);
+
+    long stamp = lock.writeLock();
+    try {
+      for(int j=0; j<nseg; j++) {
+        q = (int) segKey[j];
+        l = all.get(segLocator[q]);
+        s = segIndex[q];
+        for(e=l.segStart[s]; e<l.segEnd[s]; e++) {
+          logType[head] = l.evType[e];
+          logParticle[head] = l.evParticle[e];
+          logTime[head] = l.evTime[e];
+          logX[head] = l.evX[e];
+          logY[head] = l.evY[e];
+          logVx[head] = l.evVx[e];
+          logVy[head] = l.evVy[e];
+          head = (head+1) % logSize;
+          if (nlog < logSize) nlog++;
+          counts[l.evType[e]]++;
+        }
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+
+    if (!listeners.isEmpty()) {
+      for(int j=0; j<nseg; j++) {
+        q = (int) segKey[j];
+        l = all.get(segLocator[q]);
+        s = segIndex[q];
+        for(e=l.segStart[s]; e<l.segEnd[s]; e++) {
+          Event ev = new Event(l.evType[e],l.evParticle[e],l.evTime[e],l.evX[e],l.evY[e],
+                               l.evVx[e],l.evVy[e]);
+          for(EventListener listener : listeners) listener.eventOccurred(ev);
+        }
+      }
+    }
+    for(k=0; k<nlocators; k++) {
+      l = all.get(k);
+      l.nev = l.nseg = 0;
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns the most recent events, oldest first.  It may be called
+  // from any thread.
+  /////////////////////////////////////////////////////////////////////////////
+  public List<Event> recent() {
+    while (true) {
+      long stamp = lock.tryOptimisticRead();
+      int hd = head, n = nlog, k;
+      List<Event> list = new ArrayList<Event>(n);
+      for(int j=0; j<n; j++) {
+        k = (hd-n+j+logSize) % logSize;
+        list.add(new Event(logType[k],logParticle[k],logTime[k],logX[k],logY[k],
+                           logVx[k],logVy[k]));
+      }
+      if (lock.validate(stamp)) return list;
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns the number of events of the given kind so far.  It may be
+  // called from any thread.
+  /////////////////////////////////////////////////////////////////////////////
+  public long count(int type) {
+    while (true) {
+      long stamp = lock.tryOptimisticRead();
+      long c = counts[type];
+      if (lock.validate(stamp)) return c;
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This forgets all the events (e.g. when a new configuration is loaded).
+  // It must be called on the simulation thread.
+  /////////////////////////////////////////////////////////////////////////////
+  public void clear() {
+    long stamp = lock.writeLock();
+    try {
+      head = nlog = 0;
+      for(int k=0; k<counts.length; k++) counts[k] = 0;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // The particle being located by a thread, its state at the end of the
+  // step (relative to the planet) and the position of its last event, and
+  // the events found by the thread in this step: nev events, in nseg
+  // chunks, chunk s holding the events segStart[s], ..., segEnd[s]-1 of the
+  // particles from segFrom[s] on.
+  /////////////////////////////////////////////////////////////////////////////
+  private static final class Locator {
+    final EventDetector d;
+    int i;
+    double x1, y1, vx1, vy1, x, y;
+
+    int nev, nseg;
+    int[] evType = new int[16], evParticle = new int[16];
+    double[] evTime = new double[16], evX = new double[16], evY = new double[16];
+    double[] evVx = new double[16], evVy = new double[16];
+    int[] segFrom = new int[4], segStart = new int[4], segEnd = new int[4];
+
+    Locator(EventDetector d) { this.d = d; }
+
+    // This buffers an event of particle i at time t, at (x,y), with the
+    // velocity (vx,vy).
+    void add(int type, double t, double vx, double vy) {
+      if (nev == evType.length) {
+        int n = 2*nev;
+        evType = Arrays.copyOf(evType,n);
+        evParticle = Arrays.copyOf(evParticle,n);
+        evTime = Arrays.copyOf(evTime,n);
+        evX = Arrays.copyOf(evX,n);
+        evY = Arrays.copyOf(evY,n);
+        evVx = Arrays.copyOf(evVx,n);
+        evVy = Arrays.copyOf(evVy,n);
+      }
+      evType[nev] = type;
+      evParticle[nev] = i;
+      evTime[nev] = t;
+      evX[nev] = x;
+      evY[nev] = y;
+      evVx[nev] = vx;
+      evVy[nev] = vy;
+      nev++;
+    }
+
+    // This ends a chunk of the particles from on, whose events start at
+    // start.
+    void chunk(int from, int start) {
+      if (nseg == segFrom.length) {
+        int n = 2*nseg;
+        segFrom = Arrays.copyOf(segFrom,n);
+        segStart = Arrays.copyOf(segStart,n);
+        segEnd = Arrays.copyOf(segEnd,n);
+      }
+      segFrom[nseg] = from;
+      segStart[nseg] = start;
+      segEnd[nseg] = nev;
+      nseg++;
+    }
+
+    // The function of the given kind for particle i at a fraction s of the
+    // step: r^2 - R^2, or r.v.
+    double f(int kind, double s) {
+      double h = d.h;
+      double x = Hermite.position(d.x0[i],d.vx0[i],x1,vx1,h,s);
+      double y = Hermite.position(d.y0[i],d.vy0[i],y1,vy1,h,s);
+      if (kind == RADIUS) return x*x+y*y-d.R2;
+      return x*Hermite.velocity(d.x0[i],d.vx0[i],x1,vx1,h,s)
+           + y*Hermite.velocity(d.y0[i],d.vy0[i],y1,vy1,h,s);
+    }
+
+    // This returns the root of f(kind,s) between 0 and b, where f changes
+    // sign, using the Illinois variant of the regula falsi.
+    double root(int kind, double b) {
+      double a = 0.0, fa = f(kind,a), fb = f(kind,b), c = b, fc;
+      int side = 0;
+      if (fa == 0.0) return a;
+      for(int iter=0; iter<100 && fa != fb; iter++) {
+        c = (a*fb-b*fa)/(fb-fa);
+        fc = f(kind,c);
+        if (fc == 0.0 || b-a <= 1.0e-14) break;
+        if ((fc > 0.0) == (fa > 0.0)) {
+          a = c;
+          fa = fc;
+          if (side == -1) fb /= 2.0;
+          side = -1;
+        } else {
+          b = c;
+          fb = fc;
+          if (side == 1) fa /= 2.0;
+          side = 1;
+        }
+      }
+      return c;
+    }
+  }
+}
@@ -0,0 +1,9 @@
+/****************************************************************************
+* Receives the events found by an EventDetector.  It is called on the
+* thread which steps the simulation, at the end of the step in which the
+* event happened.
+****************************************************************************/
+
+public interface EventListener {
+  void eventOccurred(Event e);
+}
@@ -0,0 +1,35 @@
+/****************************************************************************
+* The gravitational field of the planet, i.e. a point mass M fixed at
+* (x0,y0).  The integrators obtain all their forces from this class.
+****************************************************************************/
+
+public class Gravity {
+
+  // gravitational constant and planet mass:
+  public double G = 1.0, M = 1.0;
+
+  // position of the planet:
+  public double x0 = 0.0, y0 = 0.0;
+
+  /////////////////////////////////////////////////////////////////////////////
+  // gravitational acceleration function
+  // xx[0] = x, xx[1] = y, xx[2] = vx, xx[3] = vy
+  // The derivatives are written into result, which may not be xx.
+  /////////////////////////////////////////////////////////////////////////////
+  public void F(double[] xx, double[] result) {
+      double r = Math.sqrt((xx[0]-x0)*(xx[0]-x0) + (xx[1]-y0)*(xx[1]-y0));
+      result[0] = xx[2];
+      result[1] = xx[3];
+      result[2] = (x0-xx[0])*G*M/(r*r*r);
+      result[3] = (y0-xx[1])*G*M/(r*r*r);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns G*M/r^3 at (x,y).  The acceleration is then
+  // ((x0-x)*k, (y0-y)*k), which avoids returning an array.
+  /////////////////////////////////////////////////////////////////////////////
+  public double k(double x, double y) {
+    double r = Math.sqrt((x-x0)*(x-x0) + (y-y0)*(y-y0));
+    return G*M/(r*r*r);
+  }
+}
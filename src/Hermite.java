@@ -0,0 +1,63 @@
+/****************************************************************************
+* Cubic Hermite interpolation of a coordinate over a step of length h, from
+* its values p0, p1 and derivatives v0, v1 at both ends.  Since the
+* integrators give positions and velocities at the end of every step, this
+* provides a dense output of the motion inside the step at no extra cost.
+* The position is third order accurate and continuous with its derivative
+* from one step to the next.
+****************************************************************************/
+
+public final class Hermite {
+
+  // largest h*v/r (about the angle swept around the centre) for which
+  // fits() holds:
+  public static final double maxAngle = 0.5;
+
+  private Hermite() {}
+
+  /////////////////////////////////////////////////////////////////////////////
+  /**
+   * Interpolated position.
+   *
+   * @param  p0, v0  position and velocity at the start of the step
+   * @param  p1, v1  position and velocity at the end of the step
+   * @param  h       length of the step
+   * @param  s       fraction of the step (0 = start, 1 = end)
+   */
+  /////////////////////////////////////////////////////////////////////////////
+  public static double position(double p0, double v0, double p1, double v1,
+                                double h, double s) {
+    double s2 = s*s, s3 = s2*s;
+    return (2.0*s3-3.0*s2+1.0)*p0 + (s3-2.0*s2+s)*h*v0
+         + (3.0*s2-2.0*s3)*p1 + (s3-s2)*h*v1;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  /**
+   * Whether the interpolation can be trusted over the step, i.e. whether
+   * the step is short against the time scale r/v of the particle (r being
+   * its distance to the centre cx, cy) at both ends.  Over a step of several
+   * revolutions (a large time warp, or one large step of kepler or wh),
+   * the tangents h*v0 and h*v1 are much longer than the orbit and the
+   * cubic goes far off it.
+   */
+  /////////////////////////////////////////////////////////////////////////////
+  public static boolean fits(double x0, double y0, double vx0, double vy0,
+                             double x1, double y1, double vx1, double vy1,
+                             double h, double cx, double cy) {
+    double r0 = (x0-cx)*(x0-cx) + (y0-cy)*(y0-cy);
+    double r1 = (x1-cx)*(x1-cx) + (y1-cy)*(y1-cy);
+    double v2 = Math.max(vx0*vx0 + vy0*vy0,vx1*vx1 + vy1*vy1);
+    return h*h*v2 <= maxAngle*maxAngle*Math.min(r0,r1);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Interpolated velocity, i.e. the derivative of position() with respect
+  // to time (same arguments).
+  /////////////////////////////////////////////////////////////////////////////
+  public static double velocity(double p0, double v0, double p1, double v1,
+                                double h, double s) {
+    double s2 = s*s;
+    return (6.0*s2-6.0*s)*(p0-p1)/h + (3.0*s2-4.0*s+1.0)*v0 + (3.0*s2-2.0*s)*v1;
+  }
+}
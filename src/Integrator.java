@@ -0,0 +1,85 @@
+/****************************************************************************
+* An integration method which advances the projectiles in a ParticleStore.
+* Implementations keep any scratch space they need per thread, so that
+* stepping does not allocate.
+****************************************************************************/
+
+public abstract class Integrator {
+
+  /////////////////////////////////////////////////////////////////////////////
+  /**
+   * Advances particles from, ..., to-1 by a time dt.
+   *
+   * @param  g     gravitational field
+   * @param  p     particles
+   * @param  from  index of the first particle to advance
+   * @param  to    index after the last particle to advance
+   * @param  dt    time step
+   */
+  /////////////////////////////////////////////////////////////////////////////
+  public abstract void step(Gravity g, ParticleStore p, int from, int to, double dt);
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This is called before each step over all the particles, on the calling
+  // thread, so that any per-particle storage can be sized before step is
+  // called on several ranges at once.
+  /////////////////////////////////////////////////////////////////////////////
+  public void prepare(ParticleStore p) {}
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Any per-particle state kept from one step to the next (e.g. step
+  // sizes), as copies of arrays of p.n values, for checkpoints (see
+  // Checkpoint); null if there is none.
+  /////////////////////////////////////////////////////////////////////////////
+  public double[][] saveState(ParticleStore p) { return null; }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This puts back the state returned by saveState, for the particles p.
+  /////////////////////////////////////////////////////////////////////////////
+  public void restoreState(ParticleStore p, double[][] state) {}
+
+  /////////////////////////////////////////////////////////////////////////////
+  // The name under which this method appears in configuration files.
+  /////////////////////////////////////////////////////////////////////////////
+  public abstract String name();
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns the integration method with the given name, or null if
+  // there is no such method.
+  /////////////////////////////////////////////////////////////////////////////
+  public static Integrator forName(String name) {
+    name = name.toLowerCase();
+    if (name.equals("euler"))    return new EulerIntegrator();
+    if (name.equals("rk4"))      return new RK4Integrator();
+    if (name.equals("leapfrog")) return SymplecticIntegrator.leapfrog();
+    if (name.equals("yoshida4")) return SymplecticIntegrator.yoshida4();
+    if (name.equals("yoshida6")) return SymplecticIntegrator.yoshida6();
+    if (name.equals("rk45"))     return new DormandPrinceIntegrator();
+    if (name.equals("kepler"))   return new KeplerIntegrator();
+    if (name.equals("wh"))       return new WisdomHolmanIntegrator();
+    if (name.equals("levicivita")) return new LeviCivitaIntegrator();
+    return null;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns a SIMD version of the given integrator if there is one and
+  // the Vector API is available (java --add-modules jdk.incubator.vector),
+  // and the integrator itself otherwise.
+  /////////////////////////////////////////////////////////////////////////////
+  public static Integrator vectorized(Integrator scalar) {
+    if (!(scalar instanceof RK4Integrator) && !(scalar instanceof SymplecticIntegrator))
+      return scalar;
+    try {
+      // loaded by name so that this class does not depend on the module:
+      return (Integrator) Class.forName("VectorIntegrator")
+               .getConstructor(Integrator.class).newInstance(scalar);
+    } catch(Throwable e) {
+      return scalar;
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns the scalar integrator behind a SIMD one (or this).
+  /////////////////////////////////////////////////////////////////////////////
+  public Integrator scalar() { return this; }
+}
@@ -0,0 +1,223 @@
+import java.util.Arrays;
+
+/****************************************************************************
+* Exact propagation of the projectiles along their Kepler orbits around the
+* planet, using universal variables so that elliptic, parabolic and
+* hyperbolic orbits are all handled by the same equations.
+*
+* The state of each particle at some epoch is kept together with the time
+* elapsed since then, and each step computes the new state directly from
+* the epoch state.  Errors therefore do not accumulate from one step to the
+* next, and dt can be as large as one likes.  The epoch is taken again
+* whenever the state found in the ParticleStore is not the one written by
+* the previous step, i.e. after a burn.
+****************************************************************************/
+
+public class KeplerIntegrator extends Integrator {
+
+  // the store the epochs below belong to:
+  private ParticleStore store;
+
+  // state at the epoch, relative to the planet, and G*M:
+  private double[] ex, ey, evx, evy, emu;
+
+  // time elapsed since the epoch (reduced modulo the period of elliptic
+  // orbits), and the corresponding universal anomaly:
+  private double[] tau, chi;
+
+  // state written by the last step (NaN = none yet):
+  private double[] wx, wy, wvx, wvy;
+
+  private static final ThreadLocal<double[]> scratch = new ThreadLocal<double[]>() {
+    protected double[] initialValue() { return new double[5]; }
+  };
+
+  public String name() { return "kepler"; }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This allocates the epochs when the particles have been replaced.
+  /////////////////////////////////////////////////////////////////////////////
+  public void prepare(ParticleStore p) {
+    if (p == store) return;
+    int n = p.n;
+    ex = new double[n]; ey = new double[n];
+    evx = new double[n]; evy = new double[n];
+    emu = new double[n];
+    tau = new double[n]; chi = new double[n];
+    wx = new double[n]; wy = new double[n];
+    wvx = new double[n]; wvy = new double[n];
+    Arrays.fill(wx,Double.NaN);
+    store = p;
+  }
+
+  public double[][] saveState(ParticleStore p) {
+    if (p != store) return null;
+    double[][] a = {ex, ey, evx, evy, emu, tau, chi, wx, wy, wvx, wvy};
+    double[][] state = new double[a.length][];
+    for(int k=0; k<a.length; k++) state[k] = a[k].clone();
+    return state;
+  }
+
+  public void restoreState(ParticleStore p, double[][] state) {
+    if (state.length != 11) return;
+    prepare(p);
+    double[][] a = {ex, ey, evx, evy, emu, tau, chi, wx, wy, wvx, wvy};
+    for(int k=0; k<a.length; k++) {
+      if (state[k].length == p.n) System.arraycopy(state[k],0,a[k],0,p.n);
+    }
+  }
+
+  public void step(Gravity g, ParticleStore p, int from, int to, double dt) {
+    double[] s = scratch.get();
+    double mu = g.G*g.M, a, period;
+    for(int i=from; i<to; i++) {
+      if (!p.active[i]) continue;
+      if (p.x[i] != wx[i] || p.y[i] != wy[i] || p.vx[i] != wvx[i]
+          || p.vy[i] != wvy[i] || mu != emu[i]) {
+        // new epoch:
+        ex[i]  = p.x[i]-g.x0;
+        ey[i]  = p.y[i]-g.y0;
+        evx[i] = p.vx[i];
+        evy[i] = p.vy[i];
+        emu[i] = mu;
+        tau[i] = 0.0;
+        chi[i] = 0.0;
+      }
+      tau[i] += dt;
+      a = alpha(mu,ex[i],ey[i],evx[i],evy[i]);
+      if (a > 0.0) {
+        // an elliptic orbit comes back to the epoch state after each period:
+        period = 2.0*Math.PI/Math.sqrt(mu*a*a*a);
+        if (Math.abs(tau[i]) >= period) {
+          tau[i] -= Math.floor(tau[i]/period)*period;
+          chi[i] = Math.sqrt(mu)*a*tau[i];
+        }
+      }
+      propagate(mu,ex[i],ey[i],evx[i],evy[i],tau[i],chi[i],s);
+      p.x[i]  = wx[i]  = s[0]+g.x0;
+      p.y[i]  = wy[i]  = s[1]+g.y0;
+      p.vx[i] = wvx[i] = s[2];
+      p.vy[i] = wvy[i] = s[3];
+      chi[i] = s[4];
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns alpha = 1/a = 2/r - v^2/mu, which is positive for elliptic
+  // orbits, zero for parabolic ones and negative for hyperbolic ones.
+  /////////////////////////////////////////////////////////////////////////////
+  static double alpha(double mu, double x, double y, double vx, double vy) {
+    return 2.0/Math.sqrt(x*x+y*y) - (vx*vx+vy*vy)/mu;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  /**
+   * Propagates a Kepler orbit by a time t.
+   *
+   * @param  mu     G*M
+   * @param  x, y, vx, vy  initial state, relative to the central mass
+   * @param  t      time
+   * @param  chi0   guess of the universal anomaly at t (0 = none)
+   * @param  out    receives {x, y, vx, vy, chi} at t
+   */
+  /////////////////////////////////////////////////////////////////////////////
+  static void propagate(double mu, double x, double y, double vx, double vy,
+                        double t, double chi0, double[] out) {
+    double r0 = Math.sqrt(x*x+y*y);
+    double smu = Math.sqrt(mu);
+    double sigma = (x*vx+y*vy)/smu;
+    double alpha = 2.0/r0 - (vx*vx+vy*vy)/mu;
+    double b = 1.0-alpha*r0;
+    double chi = chi0, z, c, s, F, dF, ddF, dchi, r = r0;
+
+    if (t == 0.0) {
+      out[0] = x; out[1] = y; out[2] = vx; out[3] = vy; out[4] = 0.0;
+      return;
+    }
+    if (alpha > 0.0) {
+      if (chi == 0.0) chi = smu*alpha*t;
+    } else {
+      // asymptotic guess for hyperbolic orbits (from Vallado), which is
+      // safer than the previous solution when t is large:
+      double a = 1.0/alpha, sgn = Math.signum(t);
+      chi = sgn*Math.sqrt(-a)*Math.log(-2.0*mu*alpha*t
+              / (x*vx+y*vy + sgn*Math.sqrt(-mu*a)*(1.0-r0*alpha)));
+      if (!(chi*sgn > 0.0 && Math.abs(chi) < Math.abs(smu*t/r0))) chi = smu*t/r0;
+    }
+
+    // Laguerre-Conway iterations on the universal Kepler equation
+    // F(chi) = sigma chi^2 C + b chi^3 S + r0 chi - sqrt(mu) t = 0,
+    // where F'(chi) = r:
+    for(int iter=0; iter<50; iter++) {
+      z = alpha*chi*chi;
+      c = stumpffC(z);
+      s = stumpffS(z);
+      F   = sigma*chi*chi*c + b*chi*chi*chi*s + r0*chi - smu*t;
+      dF  = sigma*chi*(1.0-z*s) + b*chi*chi*c + r0;
+      ddF = sigma*(1.0-z*c) + b*chi*(1.0-z*s);
+      dchi = 5.0*F/(dF + Math.signum(dF)*Math.sqrt(Math.abs(16.0*dF*dF-20.0*F*ddF)));
+      chi -= dchi;
+      // keeps cosh(sqrt(-z)) from overflowing during the iterations:
+      if (alpha < 0.0 && Math.abs(chi)*Math.sqrt(-alpha) > 300.0)
+        chi = Math.copySign(300.0/Math.sqrt(-alpha),chi);
+      if (Math.abs(dchi) <= 1.0e-15*(1.0+Math.abs(chi))) break;
+    }
+
+    // Lagrange coefficients:
+    z = alpha*chi*chi;
+    c = stumpffC(z);
+    s = stumpffS(z);
+    double f  = 1.0 - chi*chi*c/r0;
+    double gg = t - chi*chi*chi*s/smu;
+    double nx = f*x + gg*vx, ny = f*y + gg*vy;
+    r = Math.sqrt(nx*nx+ny*ny);
+    double df  = smu/(r*r0)*(alpha*chi*chi*chi*s - chi);
+    double dgg = 1.0 - chi*chi*c/r;
+    out[0] = nx;
+    out[1] = ny;
+    out[2] = df*x + dgg*vx;
+    out[3] = df*y + dgg*vy;
+    out[4] = chi;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Stumpff function C(z) = (1-cos(sqrt(z)))/z.
+  /////////////////////////////////////////////////////////////////////////////
+  static double stumpffC(double z) {
+    if (Math.abs(z) < 1.0) {
+      // series, to avoid cancellations: sum (-z)^k/(2k+2)!
+      double term = 0.5, sum = 0.5;
+      for(int k=1; k<12; k++) {
+        term *= -z/((2*k+1)*(2*k+2));
+        sum += term;
+      }
+      return sum;
+    }
+    if (z > 0.0) {
+      double sz = Math.sin(Math.sqrt(z)/2.0);
+      return 2.0*sz*sz/z;
+    }
+    return (Math.cosh(Math.sqrt(-z))-1.0)/(-z);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Stumpff function S(z) = (sqrt(z)-sin(sqrt(z)))/sqrt(z)^3.
+  /////////////////////////////////////////////////////////////////////////////
+  static double stumpffS(double z) {
+    if (Math.abs(z) < 1.0) {
+      // series: sum (-z)^k/(2k+3)!
+      double term = 1.0/6.0, sum = 1.0/6.0;
+      for(int k=1; k<12; k++) {
+        term *= -z/((2*k+2)*(2*k+3));
+        sum += term;
+      }
+      return sum;
+    }
+    if (z > 0.0) {
+      double sz = Math.sqrt(z);
+      return (sz-Math.sin(sz))/(sz*sz*sz);
+    }
+    double sz = Math.sqrt(-z);
+    return (Math.sinh(sz)-sz)/(sz*sz*sz);
+  }
+}
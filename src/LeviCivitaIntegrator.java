@@ -0,0 +1,131 @@
+/****************************************************************************
+* Levi-Civita regularization: the relative position x+iy of a particle is
+* written as the square of u = u1+iu2, and the physical time t is replaced
+* by a fictitious time s with dt = r ds.  The motion around the planet
+* then becomes a harmonic oscillator,
+*
+*     u'' = (h/2) u,   t' = |u|^2,
+*
+* where ' = d/ds and h = v^2/2 - GM/r is the energy per unit mass.  This
+* has no singularity at r = 0, so close passes of the planet take steps
+* which are automatically short in physical time but as easy to integrate
+* as any other part of the orbit.  The equations are integrated with RK4
+* in s, and the last step of each call is adjusted by Newton iterations so
+* as to end exactly at the physical time dt.
+****************************************************************************/
+
+public class LeviCivitaIntegrator extends Integrator {
+
+  // largest step in s, in units of 1/sqrt(|h|/2) (i.e. of the inverse of
+  // the frequency of the oscillator):
+  private static final double maxPhase = 0.05;
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Scratch arrays used by the method, one set per thread.  The state is
+  // {u1, u2, u1', u2', t}.
+  /////////////////////////////////////////////////////////////////////////////
+  private static final class Scratch {
+    final double[] y = new double[5];
+    final double[] ynew = new double[5];
+    final double[] tmp = new double[5];
+    final double[] k1 = new double[5];
+    final double[] k2 = new double[5];
+    final double[] k3 = new double[5];
+    final double[] k4 = new double[5];
+  }
+
+  private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+    protected Scratch initialValue() { return new Scratch(); }
+  };
+
+  public String name() { return "levicivita"; }
+
+  public void step(Gravity g, ParticleStore p, int from, int to, double dt) {
+    Scratch s = scratch.get();
+    double GM = g.G*g.M;
+    double x, y, vx, vy, r, h, u1, u2, ds, dsmax, err;
+    double[] Y = s.y, N = s.ynew;
+    for(int i=from; i<to; i++) {
+      if (!p.active[i]) continue;
+      x = p.x[i]-g.x0;
+      y = p.y[i]-g.y0;
+      vx = p.vx[i];
+      vy = p.vy[i];
+      r = Math.sqrt(x*x+y*y);
+      if (!(r > 0.0)) continue;
+      h = (vx*vx+vy*vy)/2.0 - GM/r;
+
+      // u = sqrt(x+iy), u' = conj(u)(vx+ivy)/2:
+      u1 = Math.sqrt((r+Math.abs(x))/2.0);
+      u2 = y/(2.0*u1);
+      if (x < 0.0) {
+        double t = u1;
+        u1 = Math.abs(u2);
+        u2 = Math.copySign(t,y);
+      }
+      Y[0] = u1;
+      Y[1] = u2;
+      Y[2] = (u1*vx+u2*vy)/2.0;
+      Y[3] = (u1*vy-u2*vx)/2.0;
+      Y[4] = 0.0;
+
+      dsmax = (h != 0.0) ? maxPhase/Math.sqrt(Math.abs(h)/2.0) : Double.POSITIVE_INFINITY;
+      while (true) {
+        r = Y[0]*Y[0]+Y[1]*Y[1];
+        ds = (dt-Y[4])/r;
+        if (ds > dsmax) {
+          rk4(Y,N,dsmax,h,s);
+          if (N[4] < dt) {
+            System.arraycopy(N,0,Y,0,5);
+            continue;
+          }
+          ds = dsmax*(dt-Y[4])/(N[4]-Y[4]);
+        }
+        // last step: Newton iterations on t(ds) = dt, where dt/ds = r:
+        for(int k=0; k<8; k++) {
+          rk4(Y,N,ds,h,s);
+          err = dt-N[4];
+          if (Math.abs(err) <= 1.0e-15*Math.abs(dt)) break;
+          ds += err/(N[0]*N[0]+N[1]*N[1]);
+        }
+        break;
+      }
+
+      // back to x+iy = u^2 and vx+ivy = 2 u u'/r:
+      u1 = N[0];
+      u2 = N[1];
+      r = u1*u1+u2*u2;
+      p.x[i]  = u1*u1-u2*u2+g.x0;
+      p.y[i]  = 2.0*u1*u2+g.y0;
+      p.vx[i] = 2.0*(u1*N[2]-u2*N[3])/r;
+      p.vy[i] = 2.0*(u1*N[3]+u2*N[2])/r;
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This takes a fourth order Runge-Kutta step of size ds from y to ynew.
+  /////////////////////////////////////////////////////////////////////////////
+  private static void rk4(double[] y, double[] ynew, double ds, double h, Scratch s) {
+    double[] tmp = s.tmp, k1 = s.k1, k2 = s.k2, k3 = s.k3, k4 = s.k4;
+    int j;
+    F(y,h,k1);
+    for(j=0; j<5; j++) tmp[j] = y[j] + k1[j]*ds/2.0;
+    F(tmp,h,k2);
+    for(j=0; j<5; j++) tmp[j] = y[j] + k2[j]*ds/2.0;
+    F(tmp,h,k3);
+    for(j=0; j<5; j++) tmp[j] = y[j] + k3[j]*ds;
+    F(tmp,h,k4);
+    for(j=0; j<5; j++) ynew[j] = y[j] + (k1[j]+2.0*k2[j]+2.0*k3[j]+k4[j])*ds/6.0;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Derivatives with respect to s of y = {u1, u2, u1', u2', t}.
+  /////////////////////////////////////////////////////////////////////////////
+  private static void F(double[] y, double h, double[] result) {
+    result[0] = y[2];
+    result[1] = y[3];
+    result[2] = h/2.0*y[0];
+    result[3] = h/2.0*y[1];
+    result[4] = y[0]*y[0]+y[1]*y[1];
+  }
+}
@@ -0,0 +1,111 @@
+/****************************************************************************
+* N-body mode: the particles attract each other as well as being attracted
+* by the planet, which stays fixed.  The mutual accelerations depend on all
+* the positions at once, so the whole system is kicked and drifted
+* together, using the coefficients of a SymplecticIntegrator, instead of
+* each particle being advanced on its own.  With the Wisdom-Holman map, the
+* drifts follow the Kepler orbits around the planet and the kicks only
+* involve the mutual attraction.
+****************************************************************************/
+
+public class NBody {
+
+  // mutual accelerations:
+  public final BarnesHut tree = new BarnesHut();
+
+  private double[] ax = new double[0], ay = new double[0];
+
+  // the kick or drift being done, and the work on a range of particles,
+  // made once so that a step allocates nothing:
+  private Gravity g;
+  private ParticleStore p;
+  private double h;
+  private boolean central;
+  private final ParallelStepper.Range accelerationsRange = new ParallelStepper.Range() {
+    public void run(int from, int to) {
+      tree.accelerations(p,g.G,from,to,ax,ay);
+    }
+  };
+  private final ParallelStepper.Range kickRange = new ParallelStepper.Range() {
+    public void run(int from, int to) { kick(from,to); }
+  };
+  private final ParallelStepper.Range driftRange = new ParallelStepper.Range() {
+    public void run(int from, int to) { drift(from,to); }
+  };
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns whether the given integrator can be used in N-body mode.
+  /////////////////////////////////////////////////////////////////////////////
+  public static boolean supports(Integrator integrator) {
+    return integrator.scalar() instanceof SymplecticIntegrator
+        || integrator instanceof WisdomHolmanIntegrator;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This advances all the particles of p by dt.
+  /////////////////////////////////////////////////////////////////////////////
+  public void step(Integrator integrator, Gravity g, ParticleStore p, double dt,
+                   ParallelStepper stepper) {
+    if (ax.length != p.n) {
+      ax = new double[p.n];
+      ay = new double[p.n];
+    }
+    if (integrator instanceof WisdomHolmanIntegrator) {
+      kick(g,p,dt/2.0,false,stepper);
+      stepper.step(integrator,g,p,dt);
+      kick(g,p,dt/2.0,false,stepper);
+      return;
+    }
+    SymplecticIntegrator si = (SymplecticIntegrator) integrator.scalar();
+    int n = si.d.length;
+    for(int j=0; j<n; j++) {
+      kick(g,p,si.c[j]*dt,true,stepper);
+      drift(p,si.d[j]*dt,stepper);
+    }
+    kick(g,p,si.c[n]*dt,true,stepper);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This changes the velocities by h times the accelerations, including
+  // that due to the planet if central is true.  The mutual accelerations
+  // are computed first, in the order of the tree, and then added to the
+  // velocities.
+  /////////////////////////////////////////////////////////////////////////////
+  private void kick(Gravity g, ParticleStore p, double h, boolean central,
+                    ParallelStepper stepper) {
+    this.g = g;
+    this.p = p;
+    this.h = h;
+    this.central = central;
+    tree.build(p);
+    stepper.forEach(p.n,accelerationsRange);
+    stepper.forEach(p.n,kickRange);
+  }
+
+  private void kick(int from, int to) {
+    double k = 0.0;
+    for(int i=from; i<to; i++) {
+      if (!p.active[i]) continue;
+      if (central) k = g.k(p.x[i],p.y[i])*h;
+      p.vx[i] += (g.x0-p.x[i])*k + ax[i]*h;
+      p.vy[i] += (g.y0-p.y[i])*k + ay[i]*h;
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This moves the particles for a time h at constant velocity.
+  /////////////////////////////////////////////////////////////////////////////
+  private void drift(ParticleStore p, double h, ParallelStepper stepper) {
+    this.p = p;
+    this.h = h;
+    stepper.forEach(p.n,driftRange);
+  }
+
+  private void drift(int from, int to) {
+    for(int i=from; i<to; i++) {
+      if (!p.active[i]) continue;
+      p.x[i] += p.vx[i]*h;
+      p.y[i] += p.vy[i]*h;
+    }
+  }
+}
@@ -3,6 +3,7 @@ import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Container;
 import java.awt.FlowLayout;
+import java.awt.GraphicsEnvironment;
 import java.awt.Graphics2D;
 import java.awt.Graphics;
 import java.awt.GridBagConstraints;
@@ -14,26 +15,25 @@ import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.PrintWriter;
+import java.io.IOException;
 import java.util.Locale;
-import java.util.StringTokenizer;
-import java.util.concurrent.TimeUnit;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JColorChooser;
+import javax.swing.JComboBox;
 import javax.swing.JComponent;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JFileChooser;
 import javax.swing.JPanel;
+import javax.swing.JSlider;
 import javax.swing.JSpinner;
 import javax.swing.JTextField;
 import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
@@ -42,33 +42,93 @@ public class Orbite extends JComponent {
   private Plot graphArea = null;
   private JPanel buttonBox, pBox;
   private JButton accelereButton, ralentitButton, pauseButton;
-  private JButton loadConfig, saveConfig;
+  private JButton loadConfig, saveConfig, recordButton, replayButton, checkpointButton;
   private JSpinner pSpinner;
   private JButton colorButton;
-  private JLabel vLabel, LLabel, historyLabel, dvLabel;
+  private JLabel vLabel, LLabel, historyLabel, dvLabel, warpLabel;
+  private JComboBox<String> warpBox;
   private SpinnerNumberModel pSpinnerModel;
   private JTextField historyField, dvField;
 
-  private double[][] xx;
-  private double[] v;
-  private double[] L;
-  private double x0=0.0, y0=0.0;
+  // The simulation runs on its own thread (see SimulationLoop) and must only
+  // be accessed through loop.invoke().  The window draws the snapshots it
+  // publishes in buffer.
+  private final Simulation sim = new Simulation();
+  private final SnapshotBuffer buffer = new SnapshotBuffer();
+  private static final long tickNanos = 10000000L;
+  private final SimulationLoop loop = new SimulationLoop(sim,buffer,tickNanos);
+  private int generation; // generation of the snapshot being shown
+
+  // the colours drawn by the plot (a copy of those of the snapshots), and
+  // the colorGeneration of the snapshot they were copied from:
+  private Color[] colors;
+  private int colorGeneration;
+
+  // performance and accuracy figures, published over JMX:
+  private final OrbiteMetrics metrics = new OrbiteMetrics();
+
+  // positions drawn, interpolated at display time between the last two
+  // snapshots, and the time they correspond to:
+  private double[] xs, ys;
+  private double shownTime;
+
+  private static final String[] warps = {"1x", "2x", "5x", "10x", "20x", "50x",
+    "100x", "200x", "500x", "1000x", "2000x", "5000x", "10000x"};
+
+  // replay of a recorded trajectory (null = the live simulation is shown),
+  // with its own controls in place of buttonBox, and whether the
+  // simulation was running before:
+  private Replay replay = null;
+  private JPanel replayBox;
+  private JButton reverseButton, playButton, liveButton;
+  private JSlider timeline;
+  private JLabel replayTime;
+  private JComboBox<String> replayWarpBox;
+  private int replayWarp = 1;
+  private long replayNanos;
+  private boolean wasRunning;
+  private boolean settingTimeline = false;
+  private static final int timelineSteps = 10000;
+
+  // trails and view of a checkpoint being loaded, to be put back once the
+  // snapshots show the generation it was restored as:
+  private volatile Checkpoint pendingView = null;
+  private volatile int pendingGeneration;
+
+  // writes the checkpoints in the background:
+  private final Checkpointer checkpointer = new Checkpointer();
+
   private int ip = 0;  // index of projectile to be "piloted"
-  private int np; // number of projectiles
   private double dv = 0.1;
-  private static double G = 1.0, M = 1.0, dt=0.005;
-  private boolean running = true;
 
   /////////////////////////////////////////////////////////////////////////////
   // The main program
   /////////////////////////////////////////////////////////////////////////////
   public static void main(String args[]) {
     Orbite monOrbite = null;
-    if (args.length == 0) {
-        monOrbite = new Orbite("");
-    } else {
-        monOrbite = new Orbite(args[0]);
+    String config = "", autosave = null;
+    double interval = 60.0;
+    try {
+      for(int i=0; i<args.length; i++) {
+        if (args[i].equals("-autosave")) {
+          autosave = args[++i];
+          // (optionally followed by the interval in seconds)
+          if (i+1 < args.length && args[i+1].matches("[0-9]*\\.?[0-9]+")) {
+            interval = Double.parseDouble(args[++i]);
+            if (!(interval > 0.0)) throw new IllegalArgumentException(args[i]);
+          }
+        } else if (config.length() == 0) {
+          config = args[i];
+        } else {
+          throw new IllegalArgumentException(args[i]);
+        }
+      }
+    } catch(Exception e) {
+      System.err.println("Usage: java Orbite [config] [-autosave file [seconds]]");
+      System.exit(2);
     }
+    monOrbite = new Orbite(config);
+    if (autosave != null) monOrbite.autosave(autosave,interval);
     JFrame f = new JFrame("Orbite 1.0");
     f.getContentPane().add("Center",monOrbite);
     f.setSize(800,800);
@@ -84,18 +144,21 @@ public class Orbite extends JComponent {
     // set English locale to avoid things like decimal commas
     Locale.setDefault(new Locale("en","US"));
 
-    np = 2;
-    xx = new double[np][];
-    v = new double[np];
-    L = new double[np];
-    xx[0] = new double[] {0.0, 0.5, 1.5, 0.0};
-    xx[1] = new double[] {0.0, 0.6, 1.5, 0.0};
-    double planetSize = 0.1;
-    Color[] pColors = {Color.green, Color.blue};
-    find_vL();
-    graphArea = new Plot(planetSize,pColors);
+    buffer.update();
+    Snapshot s = buffer.front();
+    ParticleStore p = s.particles;
+    colors = p.colors.clone();
+    colorGeneration = s.colorGeneration;
+    graphArea = new Plot(s.planetSize,p.x,p.y,colors);
+    generation = s.generation;
+    xs = new double[p.n];
+    ys = new double[p.n];
+    shownTime = s.time;
 
     if (filename.length() > 0) readConfig(filename);
+    metrics.setPlot(graphArea);
+    loop.setMetrics(metrics);
+    metrics.register();
     PlotMouseListener l = new PlotMouseListener(graphArea);
     graphArea.addMouseListener(l);
     graphArea.addMouseMotionListener(l);
@@ -104,12 +167,16 @@ public class Orbite extends JComponent {
     add("Center",graphArea);
 
     initButtons();
+    initCheckpointer();
     buttonBox = new JPanel();
     buttonBox.setLayout(new FlowLayout(FlowLayout.CENTER));
     buttonBox.add(pauseButton);
     buttonBox.add(new JLabel("  "));
     buttonBox.add(ralentitButton);
     buttonBox.add(accelereButton);
+    buttonBox.add(new JLabel("   Vitesse: "));
+    buttonBox.add(warpBox);
+    buttonBox.add(warpLabel);
     add("South",buttonBox);
 
     initPlabels();
@@ -125,6 +192,12 @@ public class Orbite extends JComponent {
     c.gridy++;
     pBox.add(saveConfig,c);
     c.gridy++;
+    pBox.add(checkpointButton,c);
+    c.gridy++;
+    pBox.add(recordButton,c);
+    c.gridy++;
+    pBox.add(replayButton,c);
+    c.gridy++;
     pBox.add(new JLabel(" "),c);
     c.gridy++;
     pBox.add(pSpinner,c);
@@ -148,72 +221,192 @@ public class Orbite extends JComponent {
   } 
 
   /////////////////////////////////////////////////////////////////////////////
-  // Reads a configuration file
+  // Reads a configuration file (see Simulation.readConfig).  The file is
+  // read on the simulation thread; the new particles appear with the next
+  // snapshot.  A checkpoint also puts back the trails and the view it was
+  // saved with, once its particles are shown.
   /////////////////////////////////////////////////////////////////////////////
-  private void readConfig(String filename) {
-    String line;
-    BufferedReader in;
-    StringTokenizer t;
-    int i, j;
-    double planetSize; 
-    Color[] pColors;
-    try {
-      in = new BufferedReader(new FileReader(filename));
-      this.G = parseDouble(trim(in.readLine()));
-      this.M = parseDouble(trim(in.readLine()));
-      planetSize = parseDouble(trim(in.readLine()));
-      this.dt = parseDouble(trim(in.readLine()));
-      this.np = Integer.parseInt(trim(in.readLine()).trim());
-      xx = new double[np][4];
-      pColors = new Color[np];
-      for(i=0; i<np; i++) {
-        t = new StringTokenizer(trim(in.readLine())," \t");
-        for(j=0; j<4; j++) xx[i][j] = parseDouble(t.nextToken());
-        pColors[i] = new Color(Integer.parseInt(t.nextToken()));
-      }
-      in.close();
-    } catch(Exception e) {
-      JOptionPane.showMessageDialog(
-        loadConfig,
-        "Unable to read file \""+filename+"\"",
-        "Failure",
-        JOptionPane.WARNING_MESSAGE
-      );
-      return;
-    }
+  private void readConfig(final String filename) {
+    loop.invoke(new Runnable() {
+      public void run() {
+        try {
+          if (Checkpoint.isCheckpoint(filename)) {
+            Checkpoint c = Checkpoint.read(filename);
+            c.restore(sim);
+            if (c.hasView()) {
+              pendingGeneration = sim.generation;
+              pendingView = c;
+            }
+          } else {
+            sim.readConfig(filename);
+          }
+        } catch(ConfigParser.SyntaxException e) {
+          showWarning(loadConfig,e.getMessage());
+        } catch(Exception e) {
+          showWarning(loadConfig,"Unable to read file \""+filename+"\"");
+        }
+      }
+    });
+  }
 
-    graphArea.replace(planetSize,pColors);
-    v = new double[np];
-    L = new double[np];
+  /////////////////////////////////////////////////////////////////////////////
+  // Writes a configuration file (see Simulation.writeConfig).  This is done
+  // on the simulation thread, between two steps.
+  /////////////////////////////////////////////////////////////////////////////
+  private void writeConfig(final String filename) {
+    loop.invoke(new Runnable() {
+      public void run() {
+        try {
+          sim.writeConfig(filename);
+        } catch(Exception e) {
+          showWarning(saveConfig,"Unable to write to file \""+filename+"\"");
+        }
+      }
+    });
   }
 
   /////////////////////////////////////////////////////////////////////////////
-  // Reads a configuration file
+  // Writes a checkpoint (see Checkpoint).  The state of the simulation is
+  // copied on the simulation thread, and handed to the checkpointer, which
+  // adds the plot and writes it in the background.  Only one checkpoint is
+  // written at a time, by hand or automatically.
   /////////////////////////////////////////////////////////////////////////////
-  private void writeConfig(String filename) {
-    File f = new File(filename);
-    PrintWriter out;
-    try {
-      out = new PrintWriter(new FileWriter(f));
-    } catch(Exception e) {
-      JOptionPane.showMessageDialog(
-        saveConfig,
-        "Unable to write to file \""+filename+"\"",
-        "Failure",
-        JOptionPane.WARNING_MESSAGE
-      );
-      return;
-    }
-    out.printf("%.15g # Gravitational constant%n",this.G);
-    out.printf("%.15g # Planet mass%n",this.M);
-    out.printf("%.15g # Planet radius%n",graphArea.planetSize);
-    out.printf("%.15g # Time step%n",this.dt);
-    out.printf("%d # Number of projectiles%n",this.np);
-    for(int i=0; i<np; i++) {
-      out.printf("%g %g %g %g %s # Particule %d%n",xx[i][0],xx[i][1],xx[i][2],xx[i][3],
-                 Integer.toString(graphArea.pColors[i].getRGB()),i);
-    }
-    out.close();
+  private void writeCheckpoint(final String filename) {
+    loop.invoke(new Runnable() {
+      public void run() {
+        if (!checkpointer.submit(Checkpoint.capture(sim),filename)) {
+          showWarning(checkpointButton,"A checkpoint is already being written, try again later");
+        }
+      }
+    });
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This sets up the checkpointer: the trails and the view are added to the
+  // checkpoints on the event dispatch thread, and failures are reported.
+  /////////////////////////////////////////////////////////////////////////////
+  private void initCheckpointer() {
+    checkpointer.setViewSource(new Checkpointer.ViewSource() {
+      public void capture(final Checkpoint c) {
+        try {
+          SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() { captureView(c); }
+          });
+        } catch(Exception e) {
+          // (saved without the view)
+        }
+      }
+    });
+    checkpointer.setListener(new Checkpointer.Listener() {
+      public void written(String filename, IOException error) {
+        if (error != null) {
+          showWarning(checkpointButton,"Unable to write to file \""+filename+"\": "+
+                      error.getMessage());
+        }
+      }
+    });
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This adds the trails and the view to c, if they show the same particles
+  // (not a replay, nor another configuration).  It runs on the event
+  // dispatch thread.
+  /////////////////////////////////////////////////////////////////////////////
+  private void captureView(Checkpoint c) {
+    if (replay == null && generation == c.getGeneration()) c.captureView(graphArea);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This saves a checkpoint to filename every interval seconds while the
+  // simulation runs (see SimulationLoop.setAutosave).
+  /////////////////////////////////////////////////////////////////////////////
+  public void autosave(String filename, double interval) {
+    loop.setAutosave(checkpointer,filename,(long) (interval*1.0e9));
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This starts recording the trajectories in a file (see TrajectoryWriter),
+  // at every step, on the simulation thread.
+  /////////////////////////////////////////////////////////////////////////////
+  private void startRecording(final String filename) {
+    loop.invoke(new Runnable() {
+      public void run() {
+        try {
+          if (sim.recorder != null) sim.recorder.close();
+          sim.recorder = new TrajectoryWriter(filename,sim,1);
+        } catch(Exception e) {
+          sim.recorder = null;
+          showWarning(recordButton,"Unable to write to file \""+filename+"\": "+
+                      e.getMessage());
+          SwingUtilities.invokeLater(new Runnable() {
+            public void run() { recordButton.setText("Record"); }
+          });
+        }
+      }
+    });
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This stops recording the trajectories.
+  /////////////////////////////////////////////////////////////////////////////
+  private void stopRecording() {
+    loop.invoke(new Runnable() {
+      public void run() {
+        TrajectoryWriter r = sim.recorder;
+        if (r == null) return;
+        sim.recorder = null;
+        r.close();
+        if (r.getError() != null) {
+          showWarning(recordButton,"Unable to write the trajectory: "+r.getError().getMessage());
+        }
+      }
+    });
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This shows a warning dialog; it may be called from any thread.
+  /////////////////////////////////////////////////////////////////////////////
+  private static void showWarning(final JComponent parent, final String message) {
+    SwingUtilities.invokeLater(new Runnable() {
+      public void run() {
+        JOptionPane.showMessageDialog(
+          parent,
+          message,
+          "Failure",
+          JOptionPane.WARNING_MESSAGE
+        );
+      }
+    });
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This gives particle i a boost of dv along its velocity, on the
+  // simulation thread.
+  /////////////////////////////////////////////////////////////////////////////
+  private void burn(final int i, final double dv) {
+    loop.invoke(new Runnable() {
+      public void run() {
+        if (i < sim.particles.n) {
+          sim.particles.burn(i,dv);
+          metrics.rebase(sim,i);
+        }
+      }
+    });
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This changes the colour of particle i, on the simulation thread; the
+  // next snapshot brings it to the plot.
+  /////////////////////////////////////////////////////////////////////////////
+  private void setColor(final int i, final Color color) {
+    loop.invoke(new Runnable() {
+      public void run() {
+        if (i < sim.particles.n) {
+          sim.particles.colors[i] = color;
+          sim.colorGeneration++;
+        }
+      }
+    });
   }
 
   /////////////////////////////////////////////////////////////////////////////
@@ -222,7 +415,7 @@ public class Orbite extends JComponent {
   private void initButtons() {
     accelereButton = new JButton("+");
     ralentitButton = new JButton("-");
-    if (running)  {
+    if (loop.isRunning())  {
       pauseButton = new JButton("\u2016"); // (= pause)
     } else {
       pauseButton = new JButton("\u25BA"); // (= run)
@@ -230,31 +423,33 @@ public class Orbite extends JComponent {
 
     accelereButton.addActionListener(new ActionListener() {
       public void actionPerformed(ActionEvent e) {
-        xx[ip][2] += (dv*xx[ip][2])/v[ip];
-        xx[ip][3] += (dv*xx[ip][3])/v[ip];
-        v[ip] = Math.sqrt(xx[ip][2]*xx[ip][2]+xx[ip][3]*xx[ip][3]);
-        L[ip] = xx[ip][3]*(xx[ip][0]-x0) - xx[ip][2]*(xx[ip][1]-y0);
-        refreshPlabels();
+        burn(ip,dv);
       }
     });
     ralentitButton.addActionListener(new ActionListener() {
       public void actionPerformed(ActionEvent e) {
-        xx[ip][2] -= (dv*xx[ip][2])/v[ip];
-        xx[ip][3] -= (dv*xx[ip][3])/v[ip];
-        v[ip] = Math.sqrt(xx[ip][2]*xx[ip][2]+xx[ip][3]*xx[ip][3]);
-        L[ip] = xx[ip][3]*(xx[ip][0]-x0) - xx[ip][2]*(xx[ip][1]-y0);
-        refreshPlabels();
+        burn(ip,-dv);
+      }
+    });
+
+    // time warp, i.e. number of steps per tick of the simulation loop:
+    warpBox = new JComboBox<String>(warps);
+    warpBox.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        String w = (String) warpBox.getSelectedItem();
+        loop.setWarp(Integer.parseInt(w.substring(0,w.length()-1)));
       }
     });
+    warpLabel = new JLabel(" ");
 
     pauseButton.addActionListener(new ActionListener() {
       public void actionPerformed(ActionEvent e) {
         // \u25BA (= run) \u23F8 (= pause)
-        if (running) {
-          running = false;
+        if (loop.isRunning()) {
+          loop.setRunning(false);
           pauseButton.setText("\u25BA");
         } else {
-          running = true;
+          loop.setRunning(true);
           pauseButton.setText("\u2016");
         }
       }
@@ -325,6 +520,60 @@ public class Orbite extends JComponent {
       }
     });
 
+    checkpointButton = new JButton("Checkpoint");
+    checkpointButton.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        JFileChooser fc = new JFileChooser(new File(System.getProperty("user.dir")));
+        int result = fc.showSaveDialog(checkpointButton);
+        if(result != JFileChooser.APPROVE_OPTION) return;
+        File aFile = fc.getSelectedFile();
+        if (aFile.exists()) {
+          result = JOptionPane.showConfirmDialog(
+               checkpointButton,
+               "Are you sure you want to overwrite "+aFile.getName()+"?",
+               "File exists",JOptionPane.YES_NO_OPTION);
+          if (result != JOptionPane.YES_OPTION) return;
+        }
+        writeCheckpoint(aFile.getPath());
+      }
+    });
+
+    recordButton = new JButton("Record");
+    recordButton.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        if (recordButton.getText().equals("Stop")) {
+          stopRecording();
+          recordButton.setText("Record");
+          return;
+        }
+
+        // open in current directory:
+        JFileChooser fc = new JFileChooser(new File(System.getProperty("user.dir")));
+        int result = fc.showSaveDialog(recordButton);
+        if(result != JFileChooser.APPROVE_OPTION) return;
+        File aFile = fc.getSelectedFile();
+        if (aFile.exists()) {
+          result = JOptionPane.showConfirmDialog(
+               recordButton,
+               "Are you sure you want to overwrite "+aFile.getName()+"?",
+               "File exists",JOptionPane.YES_NO_OPTION);
+          if (result != JOptionPane.YES_OPTION) return;
+        }
+        startRecording(aFile.getPath());
+        recordButton.setText("Stop");
+      }
+    });
+
+    replayButton = new JButton("Replay");
+    replayButton.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        JFileChooser fc = new JFileChooser(new File(System.getProperty("user.dir")));
+        if (fc.showOpenDialog(replayButton) != JFileChooser.APPROVE_OPTION) return;
+        startReplay(fc.getSelectedFile().getPath());
+      }
+    });
+    initReplayBox();
+
     vLabel = new JLabel(" ");
     LLabel = new JLabel(" ");
 
@@ -342,35 +591,36 @@ public class Orbite extends JComponent {
     });
 
     historyLabel = new JLabel(" Historique: ");
-    historyField = new JTextField(String.format("%d",graphArea.npast));
+    historyField = new JTextField(String.format("%d",graphArea.getNpast()));
     historyField.addActionListener(new ActionListener() {
       public void actionPerformed(ActionEvent e) {
         Integer npast = readInt(historyField.getText(),"l'historique",1,9999,historyField);
         if (npast == null) {
-          historyField.setText(String.format("%d",graphArea.npast));
+          historyField.setText(String.format("%d",graphArea.getNpast()));
         } else {
-          graphArea.npast = npast;
+          graphArea.setNpast(npast);
         }
       }
     });
 
     colorButton = new JButton();
-    colorButton.setBackground(graphArea.pColors[ip]);
+    colorButton.setBackground(buffer.front().particles.colors[ip]);
     colorButton.addActionListener(new ActionListener() {
       public void actionPerformed(ActionEvent e) {
         Color color = JColorChooser.showDialog(colorButton, "Choisissez une couleur",
-                      graphArea.pColors[ip]);
-        graphArea.pColors[ip] = color;
+                      buffer.front().particles.colors[ip]);
+        if (color == null) return;
+        setColor(ip,color);
         colorButton.setBackground(color);
       }
     });
-    pSpinnerModel = new SpinnerNumberModel(ip+1,1,np,1);
+    pSpinnerModel = new SpinnerNumberModel(ip+1,1,buffer.front().particles.n,1);
     pSpinner = new JSpinner(pSpinnerModel);
     pSpinner.addChangeListener(new ChangeListener() {
       public void stateChanged(ChangeEvent e) {
         ip = pSpinnerModel.getNumber().intValue()-1;
         refreshPlabels();
-        colorButton.setBackground(graphArea.pColors[ip]);
+        colorButton.setBackground(buffer.front().particles.colors[ip]);
       }
     });
   }
@@ -380,105 +630,293 @@ public class Orbite extends JComponent {
   /////////////////////////////////////////////////////////////////////////////
   private void refreshPlabels() {
     ip = pSpinnerModel.getNumber().intValue()-1;
-    vLabel.setText(String.format("  v = %.3g ",v[ip]));
-    LLabel.setText(String.format("  L = %.3g ",L[ip]));
+    ParticleStore p = buffer.front().particles;
+    if (p.active[ip]) {
+      vLabel.setText(String.format("  v = %.3g ",p.v[ip]));
+    } else {
+      vLabel.setText("  Écrasé ");
+    }
+    LLabel.setText(String.format("  L = %.3g ",p.L[ip]));
   }
 
   /////////////////////////////////////////////////////////////////////////////
-  // This makes the particles orbit
+  // This makes the particles orbit: the simulation thread is started, and
+  // the latest snapshot is drawn at the refresh rate of the display.
   /////////////////////////////////////////////////////////////////////////////
   public void lanceOrbite() {
-    int i, n = xx.length; 
-    while(true){
-      if (running) {
-        // Euler method:
-        //n = xx.length;
-        //for(i=0; i<n; i++) Euler(xx[i]);
-
-        // RK4 method:
-        n = xx.length;
-        for(i=0; i<n; i++) RK4(xx[i]);
-
-        double[] xpos = new double[n];
-        double[] ypos = new double[n];
-        for(i=0; i<n; i++) {
-          xpos[i] = xx[i][0];
-          ypos[i] = xx[i][1];
-        }
-        find_vL();
-        refreshPlabels();
-        graphArea.setPositions(xpos,ypos);
+    loop.start();
+    Timer timer = new Timer(1000/refreshRate(), new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        showLatest();
       }
-      graphArea.repaint();
-      try {
-        TimeUnit.MILLISECONDS.sleep(10L);
-      } catch(InterruptedException ex) {
-        Thread.currentThread().interrupt();
+    });
+    timer.setCoalesce(true);
+    timer.start();
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This takes the latest snapshot, if there is a new one, passes the
+  // positions at display time to the plot, and repaints it.  The display
+  // runs one tick behind the simulation: a snapshot covers the tick which
+  // has just been simulated, and is shown over the next one, interpolating
+  // between its start and end states.  It runs on the event dispatch thread.
+  /////////////////////////////////////////////////////////////////////////////
+  private void showLatest() {
+    if (replay != null) {
+      showReplay();
+      return;
+    }
+    boolean fresh = buffer.update();
+    Snapshot s = buffer.front();
+    ParticleStore p = s.particles;
+    if (fresh && s.generation != generation) {
+      // a new configuration has been loaded:
+      generation = s.generation;
+      colors = p.colors.clone();
+      colorGeneration = s.colorGeneration;
+      graphArea.replace(s.planetSize,p.x,p.y,colors);
+      if (ip >= p.n) pSpinnerModel.setValue(1);
+      pSpinnerModel.setMaximum(p.n);
+      colorButton.setBackground(p.colors[ip]);
+      // (loading a configuration ends the recording)
+      recordButton.setText("Record");
+      xs = new double[p.n];
+      ys = new double[p.n];
+      shownTime = s.time;
+      Checkpoint v = pendingView;
+      if (v != null && pendingGeneration == generation) {
+        pendingView = null;
+        v.restoreView(graphArea);
+        historyField.setText(String.format("%d",graphArea.getNpast()));
+      }
+    } else {
+      if (s.colorGeneration != colorGeneration) {
+        // a colour has been changed:
+        colorGeneration = s.colorGeneration;
+        System.arraycopy(p.colors,0,colors,0,p.n);
+        graphArea.invalidateTrails();
+      }
+      double f = (double) (System.nanoTime()-s.publishNanos)/tickNanos;
+      f = Math.min(1.0,Math.max(0.0,f));
+      double t = s.startTime + f*(s.time-s.startTime);
+      if (t != shownTime) {
+        s.interpolate(f,xs,ys);
+        graphArea.setPositions(xs,ys);
+        shownTime = t;
       }
     }
+    if (fresh) refreshPlabels();
+    refreshWarp();
+    graphArea.repaint();
   }
 
   /////////////////////////////////////////////////////////////////////////////
-  // gravitational acceleration function
-  // xx[0] = x, xx[1] = y, xx[2] = vx, xx[3] = vy
+  // Initialises the controls of the replay: play backwards, pause, play,
+  // the timeline, the speed and the way back to the live simulation.
   /////////////////////////////////////////////////////////////////////////////
-  private double[] F(double[] xx) {
-      double r = Math.sqrt((xx[0]-x0)*(xx[0]-x0) + (xx[1]-y0)*(xx[1]-y0));
-      double[] result = new double[4];
-      result[0] = xx[2];
-      result[1] = xx[3];
-      result[2] = (x0-xx[0])*G*M/(r*r*r);
-      result[3] = (y0-xx[1])*G*M/(r*r*r);
-      return result;
+  private void initReplayBox() {
+    reverseButton = new JButton("\u25C4"); // (= play backwards)
+    reverseButton.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent e) { play(-1); }
+    });
+    playButton = new JButton("\u25BA");
+    playButton.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent e) { play(1); }
+    });
+    timeline = new JSlider(0,timelineSteps,0);
+    timeline.addChangeListener(new ChangeListener() {
+      public void stateChanged(ChangeEvent e) {
+        if (settingTimeline || replay == null) return;
+        // scrubbing: the trails start again from the new time
+        double f = (double) timeline.getValue()/timelineSteps;
+        replay.seek(replay.firstTime()+f*(replay.lastTime()-replay.firstTime()));
+        showReplayPositions(true);
+      }
+    });
+    replayTime = new JLabel(" ");
+    replayWarpBox = new JComboBox<String>(warps);
+    replayWarpBox.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        String w = (String) replayWarpBox.getSelectedItem();
+        replayWarp = Integer.parseInt(w.substring(0,w.length()-1));
+      }
+    });
+    liveButton = new JButton("Live");
+    liveButton.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent e) { stopReplay(); }
+    });
+    replayBox = new JPanel();
+    replayBox.setLayout(new FlowLayout(FlowLayout.CENTER));
+    replayBox.add(reverseButton);
+    replayBox.add(playButton);
+    replayBox.add(timeline);
+    replayBox.add(replayTime);
+    replayBox.add(new JLabel("   Vitesse: "));
+    replayBox.add(replayWarpBox);
+    replayBox.add(new JLabel("  "));
+    replayBox.add(liveButton);
   }
 
   /////////////////////////////////////////////////////////////////////////////
-  // This applies a fourth order Runge-Kutta method
+  // This plays the replay in the given direction (1 = forwards, -1 =
+  // backwards), or pauses it if it is already playing that way.  At an
+  // end of the recording, it starts again from the other end.
   /////////////////////////////////////////////////////////////////////////////
-  private void RK4(double[] xx) {
-    int n = xx.length;
-    double[] k1 = new double[n];
-    double[] k2 = new double[n];
-    double[] k3 = new double[n];
-    double[] k4 = new double[n];
-    k1 = F(xx);
-    k2 = F(combine(1.0,xx,dt/2.0,k1));
-    k3 = F(combine(1.0,xx,dt/2.0,k2));
-    k4 = F(combine(1.0,xx,dt,k2));
-    for(int i=0; i<n; i++) xx[i] += dt*(k1[i]+2.0*k2[i]+2.0*k3[i]+k4[i])/6.0;
+  private void play(int direction) {
+    if (replay.isPlaying() && replay.getDirection() == direction) {
+      replay.setPlaying(false);
+    } else {
+      double end = (direction > 0) ? replay.lastTime() : replay.firstTime();
+      if (replay.getTime() == end) {
+        replay.seek((direction > 0) ? replay.firstTime() : replay.lastTime());
+        showReplayPositions(true);
+      }
+      replay.setDirection(direction);
+      replay.setPlaying(true);
+      replayNanos = System.nanoTime();
+    }
+    refreshReplayButtons();
   }
 
   /////////////////////////////////////////////////////////////////////////////
-  // This applies an Euler integration method
+  // The play buttons show a pause sign while playing in their direction.
   /////////////////////////////////////////////////////////////////////////////
-  private void Euler(double[] xx) {
-    int n = xx.length;
-    double[] k = F(xx);
-    for(int i=0; i<n; i++) xx[i] += dt*k[i];
+  private void refreshReplayButtons() {
+    boolean forwards = replay.isPlaying() && replay.getDirection() > 0;
+    boolean backwards = replay.isPlaying() && replay.getDirection() < 0;
+    playButton.setText(forwards ? "\u2016" : "\u25BA");
+    reverseButton.setText(backwards ? "\u2016" : "\u25C4");
   }
 
   /////////////////////////////////////////////////////////////////////////////
-  // This calculates a linear combination of two arrays
+  // This opens a trajectory file and shows it instead of the simulation,
+  // which is paused meanwhile.
   /////////////////////////////////////////////////////////////////////////////
-  private double[] combine(double a1, double[] v1,double a2, double[] v2) {
-    int n = v1.length;
-    double[] result = new double[n];
-    for(int i=0; i<n; i++) result[i] = a1*v1[i]+a2*v2[i];
-    return result;
+  private void startReplay(String filename) {
+    Replay r;
+    try {
+      r = new Replay(filename);
+    } catch(Exception e) {
+      JOptionPane.showMessageDialog(replayButton,
+        "Unable to read trajectory \""+filename+"\": "+e.getMessage(),
+        "Failure",JOptionPane.WARNING_MESSAGE);
+      return;
+    }
+    if (replay != null) {
+      closeReplay();
+    } else {
+      wasRunning = loop.isRunning();
+      loop.setRunning(false);
+      remove(buttonBox);
+      add("South",replayBox);
+    }
+    replay = r;
+    xs = new double[r.reader.np];
+    ys = new double[r.reader.np];
+    refreshReplayButtons();
+    showReplayPositions(true);
+    revalidate();
+    repaint();
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This goes back to the live simulation.
+  /////////////////////////////////////////////////////////////////////////////
+  private void stopReplay() {
+    if (replay == null) return;
+    closeReplay();
+    replay = null;
+    remove(replayBox);
+    add("South",buttonBox);
+    Snapshot s = buffer.front();
+    ParticleStore p = s.particles;
+    colors = p.colors.clone();
+    colorGeneration = s.colorGeneration;
+    graphArea.replace(s.planetSize,p.x,p.y,colors);
+    xs = new double[p.n];
+    ys = new double[p.n];
+    shownTime = s.time;
+    loop.setRunning(wasRunning);
+    revalidate();
+    repaint();
+  }
+
+  private void closeReplay() {
+    try {
+      replay.close();
+    } catch(Exception e) {
+      // nothing left to do with the file
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This advances the replay by the wall-clock time since the last frame,
+  // at replayWarp steps per tick as for the simulation, and shows it.
+  /////////////////////////////////////////////////////////////////////////////
+  private void showReplay() {
+    long now = System.nanoTime();
+    if (replay.isPlaying()) {
+      double h = (double) (now-replayNanos)/tickNanos*replayWarp*replay.reader.dt;
+      replay.advance(h);
+      showReplayPositions(false);
+      if (!replay.isPlaying()) refreshReplayButtons();
+    }
+    replayNanos = now;
+    graphArea.repaint();
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This passes the positions at the current time of the replay to the
+  // plot, starting the trails again if restart is true (after a jump), and
+  // moves the timeline.
+  /////////////////////////////////////////////////////////////////////////////
+  private void showReplayPositions(boolean restart) {
+    try {
+      replay.positions(xs,ys);
+    } catch(Exception e) {
+      replay.setPlaying(false);
+      refreshReplayButtons();
+      return;
+    }
+    if (restart) {
+      graphArea.replace(replay.reader.planetSize,xs,ys,replay.reader.colors);
+    } else {
+      graphArea.setPositions(xs,ys);
+    }
+    double span = replay.lastTime()-replay.firstTime();
+    settingTimeline = true;
+    timeline.setValue(span > 0.0 ?
+      (int) Math.round((replay.getTime()-replay.firstTime())/span*timelineSteps) : 0);
+    settingTimeline = false;
+    replayTime.setText(String.format(" t = %.4g ",replay.getTime()));
+    graphArea.repaint();
   }
 
   /////////////////////////////////////////////////////////////////////////////
-  // This calculates the velocity and angular momentum for the particles.
+  // This shows the time warp actually achieved when the simulation cannot
+  // keep up with the one asked for.
   /////////////////////////////////////////////////////////////////////////////
-  private void find_vL(){
-    int n = xx.length, i;
-    double vx, vy;
-    for(i=0; i<n; i++) {
-      vx = xx[i][2]; 
-      vy = xx[i][3]; 
-      v[i] = Math.sqrt(vx*vx+vy*vy);
-      L[i] = vy*(xx[i][0]-x0) - vx*(xx[i][1]-y0);
+  private void refreshWarp() {
+    double achieved = loop.achievedWarp();
+    String text = " ";
+    if (loop.isRunning() && achieved < 0.95*loop.getWarp()) {
+      text = String.format(" (obtenu: %.3gx)",achieved);
     }
+    if (!text.equals(warpLabel.getText())) warpLabel.setText(text);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // The refresh rate of the screen, in Hz (60 if it is unknown).
+  /////////////////////////////////////////////////////////////////////////////
+  private static int refreshRate() {
+    try {
+      int rate = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                   .getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+      if (rate > 0) return rate;
+    } catch(Exception e) {
+      // headless or unknown display
+    }
+    return 60;
   }
 
   /////////////////////////////////////////////////////////////////////////////
@@ -691,27 +1129,4 @@ public class Orbite extends JComponent {
       graphArea.ymaxTarget = y+factor*(graphArea.ymax-y);
     }
   }
-
-  /////////////////////////////////////////////////////////
-  // This remove comments (i.e. anything following a "#")
-  // from a string and is used by the loadRotaTarget method:
-  /////////////////////////////////////////////////////////
-  public static String trim(String str) {
-    if (str == null) return null;
-    int len = str.length();
-    int i = 0;
-    while ((i < len)&&(str.charAt(i) != '#')) i++;
-    return str.substring(0,i);
-  }
-
-  /////////////////////////////////////////////////////////////////////////////
-  /* This parses a double after having replaced "d" and "D" to "e". */
-  /////////////////////////////////////////////////////////////////////////////
-  public static double parseDouble(String s) {
-    try {
-      return Double.parseDouble(s.replace('d','E').replace('D','E').replace(',','.'));
-    } catch(Exception e) {
-      return Double.NaN;
-    }
-  }
 }
@@ -0,0 +1,275 @@
+import graph.Plot;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import javax.management.ObjectName;
+
+/****************************************************************************
+* Performance and accuracy figures of a running simulation, published as a
+* JMX MBean.  They are sampled by the simulation thread, through update(),
+* at most once per window: the counters passed to update() only cost an
+* addition per tick, and the energies and angular momenta of the particles
+* are only looked at when a window ends.  JMX clients read the results of
+* the last window, and never touch the simulation.
+*
+* The energy v^2/2 - GM/r and the angular momentum of each particle are
+* compared to their values when the configuration was read, or when the
+* particle was last given a burn (see rebase()).  The drifts are relative
+* to the size of the terms they come from (v^2/2 and GM/r for the energy,
+* r v for the angular momentum), so that orbits close to parabolic or
+* radial do not make them blow up.
+*
+* In N-body mode, the energy and angular momentum of a particle are not
+* conserved, and those of the whole system (the active particles with a
+* mass) are used instead, the mutual potential energy being summed with
+* the tree of the N-body forces.  The references are taken again when a
+* particle crashes or is given a burn.
+*
+* The allocation rate is that of the simulation thread only: the worker
+* threads which step the particles in parallel are not counted.
+****************************************************************************/
+
+public class OrbiteMetrics implements OrbiteMetricsMBean {
+
+  private static final long windowNanos = 500000000L;
+
+  // results of the last window:
+  private volatile double stepsPerSecond, particleStepsPerSecond;
+  private volatile double integrateFraction, paintFraction;
+  private volatile double meanStepMillis, meanPaintMillis;
+  private volatile double allocationRate = Double.NaN;
+  private volatile double maxEnergyError = 0.0, maxLDrift = 0.0;
+  private volatile int particleCount;
+  private volatile double simulatedTime;
+  private volatile String integrator = "";
+
+  // plot whose paint time and trail memory are reported (null = none):
+  private volatile Plot plot = null;
+
+  // counters at the start of the window:
+  private long windowStart = System.nanoTime(), lastSteps, lastIntegrateNanos;
+  private long lastAllocated = -1, lastPaintNanos, lastPaints;
+
+  // references of each particle, and the scales the drifts are relative to:
+  private double[] E0 = new double[0], L0 = new double[0];
+  private double[] Escale = new double[0], Lscale = new double[0];
+  private int generation = -1;
+  private volatile boolean resetAll = false;
+
+  // in N-body mode, the references of the whole system and the number of
+  // active particles when they were taken, and the mutual potential of
+  // each particle:
+  private double systemE0, systemL0, systemEscale, systemLscale;
+  private int systemActive = -1;
+  private double[] phi = new double[0];
+  private Simulation sim;
+  private final ParallelStepper.Range potentialRange = new ParallelStepper.Range() {
+    public void run(int from, int to) { potentials(from,to); }
+  };
+
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This registers the metrics with the platform MBean server, under the
+  // name "orbite:type=Metrics".  An error (e.g. the name is taken) is only
+  // reported, since the simulation can run without the metrics.
+  /////////////////////////////////////////////////////////////////////////////
+  public void register() {
+    try {
+      ManagementFactory.getPlatformMBeanServer()
+        .registerMBean(this,new ObjectName("orbite:type=Metrics"));
+    } catch(Exception e) {
+      System.err.println("Unable to register the metrics: "+e);
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This sets the plot whose paint time and trail memory are reported.
+  /////////////////////////////////////////////////////////////////////////////
+  public void setPlot(Plot plot) { this.plot = plot; }
+
+  /////////////////////////////////////////////////////////////////////////////
+  /**
+   * This is called by the simulation thread after each tick, and samples
+   * the metrics when a window has gone by.
+   *
+   * @param  sim             the simulation
+   * @param  steps           number of steps taken so far
+   * @param  integrateNanos  time spent taking them, in nanoseconds
+   */
+  /////////////////////////////////////////////////////////////////////////////
+  public void update(Simulation sim, long steps, long integrateNanos) {
+    long now = System.nanoTime();
+    if (now - windowStart < windowNanos) return;
+    double elapsed = now - windowStart;
+    long k = steps - lastSteps;
+    long dnanos = integrateNanos - lastIntegrateNanos;
+    stepsPerSecond = k*1.0e9/elapsed;
+    particleStepsPerSecond = stepsPerSecond*sim.particles.n;
+    integrateFraction = dnanos/elapsed;
+    meanStepMillis = (k > 0) ? dnanos*1.0e-6/k : 0.0;
+
+    Plot pl = plot;
+    if (pl != null) {
+      long pn = pl.getPaintNanos(), np = pl.getPaints();
+      paintFraction = (pn-lastPaintNanos)/elapsed;
+      meanPaintMillis = (np > lastPaints) ? (pn-lastPaintNanos)*1.0e-6/(np-lastPaints) : 0.0;
+      lastPaintNanos = pn;
+      lastPaints = np;
+    }
+
+    long allocated = allocatedBytes();
+    if (allocated >= 0 && lastAllocated >= 0) {
+      allocationRate = (allocated-lastAllocated)*1.0e9/elapsed;
+    }
+    lastAllocated = allocated;
+
+    drift(sim);
+    particleCount = sim.particles.n;
+    simulatedTime = sim.time;
+    integrator = sim.integrator.name() + (sim.nbody != null ? " (nbody)" : "");
+
+    windowStart = now;
+    lastSteps = steps;
+    lastIntegrateNanos = integrateNanos;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This takes the current energy and angular momentum of particle i as its
+  // references, after a burn.  It must be called on the simulation thread.
+  /////////////////////////////////////////////////////////////////////////////
+  public void rebase(Simulation sim, int i) {
+    if (i < E0.length && sim.generation == generation) reference(sim,i);
+    systemActive = -1;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This finds the largest drifts of the energy and angular momentum of the
+  // active particles, taking new references for a new configuration.
+  /////////////////////////////////////////////////////////////////////////////
+  private void drift(Simulation sim) {
+    ParticleStore p = sim.particles;
+    int n = p.n;
+    if (sim.generation != generation || E0.length != n || resetAll) {
+      resetAll = false;
+      generation = sim.generation;
+      if (E0.length != n) {
+        E0 = new double[n]; L0 = new double[n];
+        Escale = new double[n]; Lscale = new double[n];
+      }
+      for(int i=0; i<n; i++) reference(sim,i);
+      systemActive = -1;
+    }
+    if (sim.nbody != null) {
+      systemDrift(sim);
+      return;
+    }
+    double GM = sim.gravity.G*sim.gravity.M;
+    double x, y, v2, E, L, dE = 0.0, dL = 0.0;
+    for(int i=0; i<n; i++) {
+      if (!p.active[i]) continue;
+      x = p.x[i]-sim.gravity.x0;
+      y = p.y[i]-sim.gravity.y0;
+      v2 = p.vx[i]*p.vx[i]+p.vy[i]*p.vy[i];
+      E = v2/2.0 - GM/Math.sqrt(x*x+y*y);
+      L = x*p.vy[i]-y*p.vx[i];
+      dE = Math.max(dE,Math.abs(E-E0[i])/Escale[i]);
+      dL = Math.max(dL,Math.abs(L-L0[i])/Lscale[i]);
+    }
+    maxEnergyError = dE;
+    maxLDrift = dL;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This finds the drifts of the energy and angular momentum of the whole
+  // system in N-body mode, taking new references if needed.
+  /////////////////////////////////////////////////////////////////////////////
+  private void systemDrift(Simulation sim) {
+    ParticleStore p = sim.particles;
+    int n = p.n, active = 0;
+    if (phi.length != n) phi = new double[n];
+    this.sim = sim;
+    sim.nbody.tree.build(p);
+    sim.stepper.forEach(n,potentialRange);
+    this.sim = null;
+    double GM = sim.gravity.G*sim.gravity.M;
+    double x, y, v2, r, E = 0.0, L = 0.0, Escale = 0.0, Lscale = 0.0;
+    for(int i=0; i<n; i++) {
+      if (!p.active[i] || p.m[i] == 0.0) continue;
+      active++;
+      x = p.x[i]-sim.gravity.x0;
+      y = p.y[i]-sim.gravity.y0;
+      v2 = p.vx[i]*p.vx[i]+p.vy[i]*p.vy[i];
+      r = Math.sqrt(x*x+y*y);
+      // (each pair is counted twice in the potentials):
+      E += p.m[i]*(v2/2.0 - GM/r + phi[i]/2.0);
+      L += p.m[i]*(x*p.vy[i]-y*p.vx[i]);
+      Escale += p.m[i]*(v2/2.0 + GM/r - phi[i]/2.0);
+      Lscale += p.m[i]*r*Math.sqrt(v2);
+    }
+    if (active != systemActive) {
+      systemActive = active;
+      systemE0 = E;
+      systemL0 = L;
+      systemEscale = Math.max(Escale,Double.MIN_NORMAL);
+      systemLscale = Math.max(Lscale,Double.MIN_NORMAL);
+    }
+    maxEnergyError = Math.abs(E-systemE0)/systemEscale;
+    maxLDrift = Math.abs(L-systemL0)/systemLscale;
+  }
+
+  private void potentials(int from, int to) {
+    ParticleStore p = sim.particles;
+    double G = sim.gravity.G;
+    for(int i=from; i<to; i++) {
+      phi[i] = (p.active[i] && p.m[i] != 0.0) ? sim.nbody.tree.potential(p,G,i) : 0.0;
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This sets the references of particle i to its current state.
+  /////////////////////////////////////////////////////////////////////////////
+  private void reference(Simulation sim, int i) {
+    ParticleStore p = sim.particles;
+    double GM = sim.gravity.G*sim.gravity.M;
+    double x = p.x[i]-sim.gravity.x0, y = p.y[i]-sim.gravity.y0;
+    double v2 = p.vx[i]*p.vx[i]+p.vy[i]*p.vy[i];
+    double r = Math.sqrt(x*x+y*y);
+    E0[i] = v2/2.0 - GM/r;
+    L0[i] = x*p.vy[i]-y*p.vx[i];
+    Escale[i] = Math.max(v2/2.0 + GM/r, Double.MIN_NORMAL);
+    Lscale[i] = Math.max(r*Math.sqrt(v2), Double.MIN_NORMAL);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // The number of bytes allocated so far by the current thread, or -1 if
+  // the JVM cannot tell.
+  /////////////////////////////////////////////////////////////////////////////
+  private long allocatedBytes() {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+      if (t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled())
+        return t.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  public double getStepsPerSecond() { return stepsPerSecond; }
+  public double getParticleStepsPerSecond() { return particleStepsPerSecond; }
+  public double getIntegrateTimeFraction() { return integrateFraction; }
+  public double getPaintTimeFraction() { return paintFraction; }
+  public double getMeanStepMillis() { return meanStepMillis; }
+  public double getMeanPaintMillis() { return meanPaintMillis; }
+  public double getAllocationBytesPerSecond() { return allocationRate; }
+  public double getMaxRelativeEnergyError() { return maxEnergyError; }
+  public double getMaxAngularMomentumDrift() { return maxLDrift; }
+  public int getParticleCount() { return particleCount; }
+  public double getSimulatedTime() { return simulatedTime; }
+  public String getIntegrator() { return integrator; }
+
+  public long getTrailMemoryBytes() {
+    Plot pl = plot;
+    return (pl != null) ? pl.trailBytes() : 0L;
+  }
+
+  public void resetReferences() { resetAll = true; }
+}
@@ -0,0 +1,41 @@
+/****************************************************************************
+* The management interface of OrbiteMetrics, as seen in JMX consoles such
+* as jconsole or VisualVM (under "orbite:type=Metrics").  The rates are
+* averages over the last sampling window.
+****************************************************************************/
+
+public interface OrbiteMetricsMBean {
+
+  // steps of the whole system, and steps of single particles, per second:
+  double getStepsPerSecond();
+  double getParticleStepsPerSecond();
+
+  // fraction of wall-clock time spent stepping and painting:
+  double getIntegrateTimeFraction();
+  double getPaintTimeFraction();
+
+  // mean time of a step and of a paint, in milliseconds:
+  double getMeanStepMillis();
+  double getMeanPaintMillis();
+
+  // bytes allocated per second by the thread which steps the simulation
+  // (not counting the worker threads which step particles in parallel):
+  double getAllocationBytesPerSecond();
+
+  // largest relative drift of the energy and of the angular momentum of a
+  // particle since the configuration was read or its last burn (in N-body
+  // mode, where they are not conserved for each particle, the drift of
+  // those of the whole system):
+  double getMaxRelativeEnergyError();
+  double getMaxAngularMomentumDrift();
+
+  // memory used by the trails, in bytes:
+  long getTrailMemoryBytes();
+
+  int getParticleCount();
+  double getSimulatedTime();
+  String getIntegrator();
+
+  // this takes the current energies and angular momenta as references:
+  void resetReferences();
+}
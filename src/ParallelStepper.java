@@ -0,0 +1,118 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/****************************************************************************
+* This advances all the projectiles with a given integrator, splitting them
+* into chunks which are stepped on a ForkJoinPool.  The projectiles do not
+* interact, so each chunk can be stepped independently and the results are
+* identical to those of a single sequential loop.
+****************************************************************************/
+
+public class ParallelStepper {
+
+  // number of threads (0 = one per available processor):
+  private final int threads;
+
+  // below this number of particles, everything is done on the calling thread:
+  public final int threshold;
+
+  private final ForkJoinPool pool;
+
+  // the step being taken, and the work on a range of particles, made once
+  // so that a step allocates nothing:
+  private Integrator integrator;
+  private Gravity g;
+  private ParticleStore p;
+  private double dt;
+  private final Range stepRange = new Range() {
+    public void run(int from, int to) { integrator.step(g,p,from,to,dt); }
+  };
+
+  /////////////////////////////////////////////////////////////////////////////
+  /**
+   * A constructor.
+   *
+   * @param  threads    number of threads (0 = one per available processor)
+   * @param  threshold  smallest number of particles worth splitting
+   */
+  /////////////////////////////////////////////////////////////////////////////
+  public ParallelStepper(int threads, int threshold) {
+    this.threads = threads;
+    this.threshold = Math.max(1,threshold);
+    int n = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+    pool = (n > 1) ? new ForkJoinPool(n) : null;
+  }
+
+  /** Number of threads as given in the configuration (0 = automatic). */
+  public int threads() { return threads; }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Some work to be done on a range of particles.
+  /////////////////////////////////////////////////////////////////////////////
+  public interface Range {
+    void run(int from, int to);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This advances all the particles of p by dt.
+  /////////////////////////////////////////////////////////////////////////////
+  public void step(Integrator integrator, Gravity g, ParticleStore p, double dt) {
+    integrator.prepare(p);
+    if (pool == null || p.n <= threshold) {
+      integrator.step(g,p,0,p.n,dt);
+      return;
+    }
+    this.integrator = integrator;
+    this.g = g;
+    this.p = p;
+    this.dt = dt;
+    forEach(p.n,stepRange);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This runs r on particles 0, ..., n-1, split into chunks which may be run
+  // in parallel, and returns once all of them are done.
+  /////////////////////////////////////////////////////////////////////////////
+  public void forEach(int n, Range r) {
+    if (pool == null || n <= threshold) {
+      r.run(0,n);
+      return;
+    }
+    // a few chunks per thread helps balance uneven work (e.g. with rk45):
+    int chunk = Math.max(threshold,n/(4*pool.getParallelism()));
+    pool.invoke(new Chunk(r,0,n,chunk));
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This shuts down the worker threads.
+  /////////////////////////////////////////////////////////////////////////////
+  public void shutdown() {
+    if (pool != null) pool.shutdown();
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // A range of particles, which is split in two until it is small enough.
+  /////////////////////////////////////////////////////////////////////////////
+  private static final class Chunk extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Range r;
+    private final int from, to, chunk;
+
+    Chunk(Range r, int from, int to, int chunk) {
+      this.r = r;
+      this.from = from;
+      this.to = to;
+      this.chunk = chunk;
+    }
+
+    protected void compute() {
+      if (to - from <= chunk) {
+        r.run(from,to);
+        return;
+      }
+      int mid = (from + to) >>> 1;
+      invokeAll(new Chunk(r,from,mid,chunk),new Chunk(r,mid,to,chunk));
+    }
+  }
+}
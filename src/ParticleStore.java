@@ -0,0 +1,135 @@
+import java.awt.Color;
+import java.util.Arrays;
+
+/****************************************************************************
+* Structure-of-arrays storage for the projectiles.  Each quantity is kept in
+* its own contiguous array so that the integrators and the plot can stream
+* through them without chasing one small array per particle.
+****************************************************************************/
+
+public class ParticleStore {
+
+  // number of projectiles
+  public final int n;
+
+  // positions and velocities:
+  public final double[] x, y, vx, vy;
+
+  // velocity norm and angular momentum (see find_vL):
+  public final double[] v, L;
+
+  // masses, used in N-body mode (0 = the particle attracts nothing):
+  public final double[] m;
+
+  // false once a particle has hit the planet; the integrators then leave
+  // it where it is:
+  public final boolean[] active;
+
+  // colours used to plot the projectiles
+  public final Color[] colors;
+
+  /////////////////////////////////////////////////////////////////////////////
+  /**
+   * A constructor.
+   *
+   * @param  n  number of projectiles
+   */
+  /////////////////////////////////////////////////////////////////////////////
+  public ParticleStore(int n) {
+    this(n,new Color[n]);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  /**
+   * A constructor which shares the colours of another store.
+   *
+   * @param  n       number of projectiles
+   * @param  colors  colours of the projectiles
+   */
+  /////////////////////////////////////////////////////////////////////////////
+  public ParticleStore(int n, Color[] colors) {
+    this.n = n;
+    x  = new double[n];
+    y  = new double[n];
+    vx = new double[n];
+    vy = new double[n];
+    v  = new double[n];
+    L  = new double[n];
+    m  = new double[n];
+    active = new boolean[n];
+    Arrays.fill(active,true);
+    this.colors = colors;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This copies the positions, velocities, v, L, masses and active flags
+  // into p, which must hold the same number of particles.
+  /////////////////////////////////////////////////////////////////////////////
+  public void copyTo(ParticleStore p) {
+    System.arraycopy(x,0,p.x,0,n);
+    System.arraycopy(y,0,p.y,0,n);
+    System.arraycopy(vx,0,p.vx,0,n);
+    System.arraycopy(vy,0,p.vy,0,n);
+    System.arraycopy(v,0,p.v,0,n);
+    System.arraycopy(L,0,p.L,0,n);
+    System.arraycopy(m,0,p.m,0,n);
+    System.arraycopy(active,0,p.active,0,n);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Sets the position, velocity and colour of particle i.
+  /////////////////////////////////////////////////////////////////////////////
+  public void set(int i, double xi, double yi, double vxi, double vyi, Color c) {
+    x[i]  = xi;
+    y[i]  = yi;
+    vx[i] = vxi;
+    vy[i] = vyi;
+    colors[i] = c;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Copies the state of particle i into s = {x, y, vx, vy}.
+  /////////////////////////////////////////////////////////////////////////////
+  public void load(int i, double[] s) {
+    s[0] = x[i];
+    s[1] = y[i];
+    s[2] = vx[i];
+    s[3] = vy[i];
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Copies s = {x, y, vx, vy} back into the state of particle i.
+  /////////////////////////////////////////////////////////////////////////////
+  public void store(int i, double[] s) {
+    x[i]  = s[0];
+    y[i]  = s[1];
+    vx[i] = s[2];
+    vy[i] = s[3];
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This changes the speed of particle i by dv along its direction of motion.
+  /////////////////////////////////////////////////////////////////////////////
+  public void burn(int i, double dv) {
+    if (!active[i]) return;
+    double vi = Math.sqrt(vx[i]*vx[i]+vy[i]*vy[i]);
+    vx[i] += (dv*vx[i])/vi;
+    vy[i] += (dv*vy[i])/vi;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This calculates the velocity and angular momentum of particle i with
+  // respect to (x0,y0).
+  /////////////////////////////////////////////////////////////////////////////
+  public void find_vL(int i, double x0, double y0) {
+    v[i] = Math.sqrt(vx[i]*vx[i]+vy[i]*vy[i]);
+    L[i] = vy[i]*(x[i]-x0) - vx[i]*(y[i]-y0);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This calculates the velocity and angular momentum for all the particles.
+  /////////////////////////////////////////////////////////////////////////////
+  public void find_vL(double x0, double y0) {
+    for(int i=0; i<n; i++) find_vL(i,x0,y0);
+  }
+}
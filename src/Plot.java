@@ -35,11 +35,13 @@ import java.awt.Font;
 import java.awt.geom.GeneralPath;
 import java.awt.geom.Rectangle2D;
 import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.awt.font.LineMetrics;
 import java.awt.font.FontRenderContext;
 import javax.swing.JComponent;
 import javax.swing.JOptionPane;
-import java.util.Vector;
+import java.util.Arrays;
 
 /****************************************************************************
 * The purpose of this class is to draw plots in Java.
@@ -54,10 +56,34 @@ public class Plot extends JComponent
   private int np = 0;
   public Color[] pColors;
 
-  // past positions:
-  public int npast = 1;
-  private Vector<double[]> xpos = new Vector<double[]>();
-  private Vector<double[]> ypos = new Vector<double[]>();
+  // past positions, including the current ones.  These are kept in a ring
+  // buffer of npast frames of np positions each: frame k occupies
+  // xpos[k*np], ..., xpos[k*np+np-1], "head" is the frame which will be
+  // overwritten next and "nframes" is the number of frames filled so far.
+  private int npast = 1;
+  private double[] xpos = new double[0];
+  private double[] ypos = new double[0];
+  private int head = 0, nframes = 0;
+
+  // The trails are drawn into an off-screen raster which is kept from one
+  // paint to the next: adding a frame only draws its np dots and erases
+  // the np dots of the frame it replaces.  Each pixel counts the dots
+  // covering it, so that erasing a dot does not punch holes in newer ones
+  // (orbits keep going over the same pixels), and remembers the frame of
+  // the dot drawn last on it, whose colour it has.  The raster is redrawn
+  // from scratch when the view, the size or the history changes.
+  private BufferedImage trails;
+  private int[] pixels, coverage, writer;
+  private boolean trailsValid = false;
+  // view used to draw the raster:
+  private double txmin, txmax, tymin, tymax;
+
+  // time spent painting, and number of paints, since the plot was created:
+  private volatile long paintNanos = 0, paints = 0;
+
+  // pixels of the singleDot symbol, relative to its centre:
+  private static final int[] dotx = {-1, 0, 1, 1, 1, 0,-1,-1};
+  private static final int[] doty = {-1,-1,-1, 0, 1, 1, 1, 0};
 
   // The x and y bounds:
   public double xminTarget=-1.0, xmaxTarget=1.0, yminTarget=-1.0, ymaxTarget=1.0;
@@ -190,37 +216,143 @@ public class Plot extends JComponent
    * A constructor.
    *
    * @param  planetSize    size of the planet
-   * @param  nprojectiles  number of projectiles gravitating around the planet
+   * @param  x             x positions of the projectiles
+   * @param  y             y positions of the projectiles
+   * @param  pColors       colours of the projectiles
    */
   /////////////////////////////////////////////////////////////////////////////
-  public Plot(double planetSize, Color[] pColors) {
-    this.planetSize = planetSize;
-    this.pColors = pColors;
-    this.np = pColors.length;
+  public Plot(double planetSize, double[] x, double[] y, Color[] pColors) {
+    replace(planetSize,x,y,pColors);
   }
 
   /////////////////////////////////////////////////////////////////////////////
-  /* replace planet size, colors and number of particles */
+  /* replace planet size, positions, colors and number of particles */
   /////////////////////////////////////////////////////////////////////////////
-  public void replace(double planetSize, Color[] pColors) {
+  public void replace(double planetSize, double[] x, double[] y, Color[] pColors) {
     this.planetSize = planetSize;
     this.pColors = pColors;
     this.np = pColors.length;
+    xpos = new double[npast*np];
+    ypos = new double[npast*np];
+    head = 0;
+    nframes = 0;
+    trailsValid = false;
+    setPositions(x,y);
   }
 
   /////////////////////////////////////////////////////////////////////////////
-  /* Set position of a projectile */
+  /* Adds the current positions to the history, overwriting the oldest ones
+     once there are npast frames. */
   /////////////////////////////////////////////////////////////////////////////
   public void setPositions(double[] x, double[] y) {
-    // add positions:
-    xpos.add(x);
-    ypos.add(y);
-
-    // remove past positions if need be:
-    while (xpos.size() > npast) {
-      xpos.removeElementAt(0);
-      ypos.removeElementAt(0);
+    if (trailsValid && nframes == npast) drawFrame(head,-1);
+    System.arraycopy(x,0,xpos,head*np,np);
+    System.arraycopy(y,0,ypos,head*np,np);
+    if (trailsValid) drawFrame(head,1);
+    head = (head+1) % npast;
+    if (nframes < npast) nframes++;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  /** This makes the trails be redrawn from scratch at the next paint, e.g.
+   *  after a colour has been changed. */
+  /////////////////////////////////////////////////////////////////////////////
+  public void invalidateTrails() { trailsValid = false; }
+
+  /////////////////////////////////////////////////////////////////////////////
+  /** This returns the total time spent in paint, in nanoseconds. */
+  /////////////////////////////////////////////////////////////////////////////
+  public long getPaintNanos() { return paintNanos; }
+
+  /////////////////////////////////////////////////////////////////////////////
+  /** This returns the number of times the plot has been painted. */
+  /////////////////////////////////////////////////////////////////////////////
+  public long getPaints() { return paints; }
+
+  /////////////////////////////////////////////////////////////////////////////
+  /** This returns the memory used by the trails, in bytes: the past
+   *  positions and the raster with its coverage counts and writers. */
+  /////////////////////////////////////////////////////////////////////////////
+  public long trailBytes() {
+    long bytes = 8L*(xpos.length+ypos.length);
+    int[] pix = pixels, cov = coverage, wr = writer;
+    if (pix != null) bytes += 4L*pix.length;
+    if (cov != null) bytes += 4L*cov.length;
+    if (wr != null) bytes += 4L*wr.length;
+    return bytes;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  /** This returns the number of positions shown for each projectile. */
+  /////////////////////////////////////////////////////////////////////////////
+  public int getNpast() { return npast; }
+
+  /////////////////////////////////////////////////////////////////////////////
+  /** This sets the number of positions shown for each projectile.  The most
+   *  recent positions are kept.
+   *
+   *  @param npast new number of positions */
+  /////////////////////////////////////////////////////////////////////////////
+  public void setNpast(int npast) {
+    if (npast == this.npast) return;
+    int nkeep = Math.min(nframes,npast);
+    double[] xnew = new double[npast*np];
+    double[] ynew = new double[npast*np];
+    // copy the nkeep newest frames, oldest first, to the start:
+    for(int i=0; i<nkeep; i++) {
+      int k = frame(nframes-nkeep+i);
+      System.arraycopy(xpos,k*np,xnew,i*np,np);
+      System.arraycopy(ypos,k*np,ynew,i*np,np);
     }
+    this.npast = npast;
+    xpos = xnew;
+    ypos = ynew;
+    nframes = nkeep;
+    head = nkeep % npast;
+    trailsValid = false;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  /** This returns the past positions, oldest first: {x, y}, where the
+   *  positions of frame i are at i*np, ..., i*np+np-1 (see setTrails). */
+  /////////////////////////////////////////////////////////////////////////////
+  public double[][] getTrails() {
+    double[] x = new double[nframes*np], y = new double[nframes*np];
+    for(int i=0; i<nframes; i++) {
+      int k = frame(i);
+      System.arraycopy(xpos,k*np,x,i*np,np);
+      System.arraycopy(ypos,k*np,y,i*np,np);
+    }
+    return new double[][] {x, y};
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  /** This replaces the past positions by those returned by getTrails (for
+   *  the same number of projectiles), and sets the number of positions
+   *  shown to npast.
+   *
+   *  @param x, y   past positions, oldest first
+   *  @param npast  new number of positions */
+  /////////////////////////////////////////////////////////////////////////////
+  public void setTrails(double[] x, double[] y, int npast) {
+    int n = (np > 0) ? Math.min(x.length/np,npast) : 0;
+    int skip = (np > 0) ? x.length/np-n : 0;
+    this.npast = npast;
+    xpos = new double[npast*np];
+    ypos = new double[npast*np];
+    System.arraycopy(x,skip*np,xpos,0,n*np);
+    System.arraycopy(y,skip*np,ypos,0,n*np);
+    nframes = n;
+    head = n % npast;
+    trailsValid = false;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns the slot in the ring buffer of the i-th frame, counting
+  // from the oldest one (i = 0) to the newest (i = nframes-1).
+  /////////////////////////////////////////////////////////////////////////////
+  private int frame(int i) {
+    return (head-nframes+i+npast) % npast;
   }
 
   /////////////////////////////////////////////////////////////////////////////
@@ -360,6 +492,7 @@ public class Plot extends JComponent
    *  @param g graphics frame in which to create the plot */
   /////////////////////////////////////////////////////////////////////////////
   public void paint(Graphics g) {
+    long start = System.nanoTime();
     Graphics2D g2D = (Graphics2D)g;
     Rectangle r = this.getBounds();
 
@@ -396,6 +529,8 @@ public class Plot extends JComponent
     g2D.setColor(Color.white);
     g2D.draw(r);
 
+    drawTrails(r.width,r.height);
+
     int i, j, k;
     double theta;
     GeneralPath f = new GeneralPath();
@@ -407,21 +542,7 @@ public class Plot extends JComponent
     g2D.setStroke(linestyle[dotted]);
     g2D.draw(f);
 
-    float xx, yy;
-    for(k = 0; k<np; k++) {
-      g2D.setColor(pColors[k]);
-      GeneralPath f2 = new GeneralPath();
-      for(i = 0; i<xpos.size(); i++) {
-        xx = xCoor(xpos.get(i)[k]);
-        yy = yCoor(ypos.get(i)[k]);
-        for (j = 0; j < psym[singleDot].length; j+=4) {
-          f2.moveTo(xx+psym[singleDot][j],yy+psym[singleDot][j+1]);
-          f2.lineTo(xx+psym[singleDot][j+2],yy+psym[singleDot][j+3]);
-        }
-      }
-      g2D.setStroke(Plot.psymStroke);
-      g2D.draw(f2);
-    }
+    if (trails != null) g2D.drawImage(trails,0,0,null);
 
     if (drawRect) {
       g2D.setColor(Color.white);
@@ -436,6 +557,96 @@ public class Plot extends JComponent
       g2D.setStroke(new BasicStroke(1F));
       g2D.draw(f3);
     }
+    paintNanos += System.nanoTime()-start;
+    paints++;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This redraws the trail raster from scratch if its size or the view
+  // (xmin, xmax, ymin, ymax) has changed since it was drawn.
+  /////////////////////////////////////////////////////////////////////////////
+  private void drawTrails(int width, int height) {
+    if (width <= 0 || height <= 0) return;
+    if (trails == null || trails.getWidth() != width || trails.getHeight() != height) {
+      trails = new BufferedImage(width,height,BufferedImage.TYPE_INT_ARGB);
+      pixels = ((DataBufferInt) trails.getRaster().getDataBuffer()).getData();
+      coverage = new int[width*height];
+      writer = new int[width*height];
+      trailsValid = false;
+    }
+    if (trailsValid && xmin == txmin && xmax == txmax && ymin == tymin && ymax == tymax)
+      return;
+    Arrays.fill(pixels,0);
+    Arrays.fill(coverage,0);
+    txmin = xmin; txmax = xmax; tymin = ymin; tymax = ymax;
+    trailsValid = true;
+    for(int i=0; i<nframes; i++) drawFrame(frame(i),1);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This draws (inc = 1) or erases (inc = -1) the dots of one frame of the
+  // ring buffer in the trail raster.  A pixel which is still covered keeps
+  // its colour when a dot is erased, as it is that of a newer dot (the
+  // frames are erased oldest first).  Should the frame erased be the last
+  // drawn on a pixel still covered by other dots, the colour of those is
+  // not known here, and the raster is redrawn at the next paint.
+  /////////////////////////////////////////////////////////////////////////////
+  private void drawFrame(int slot, int inc) {
+    int w = trails.getWidth(), h = trails.getHeight();
+    int px, py, qx, qy, idx, j, rgb;
+    float xx, yy;
+    boolean stale = false;
+    for(int k=0; k<np; k++) {
+      xx = xCoor(xpos[slot*np+k]);
+      yy = yCoor(ypos[slot*np+k]);
+      if (!(xx > -2.0F && xx < w+1.0F && yy > -2.0F && yy < h+1.0F)) continue;
+      px = Math.round(xx);
+      py = Math.round(yy);
+      rgb = pColors[k].getRGB();
+      for(j=0; j<dotx.length; j++) {
+        qx = px+dotx[j];
+        qy = py+doty[j];
+        if (qx < 0 || qx >= w || qy < 0 || qy >= h) continue;
+        idx = qy*w+qx;
+        if (inc > 0) {
+          coverage[idx]++;
+          pixels[idx] = rgb;
+          writer[idx] = slot;
+        } else if (coverage[idx] > 0 && --coverage[idx] == 0) {
+          pixels[idx] = 0;
+        } else if (writer[idx] == slot) {
+          stale = true;
+        }
+      }
+    }
+    // (the other dots covering the pixel may be of the same frame, and
+    // erased later in the loop):
+    if (stale && covers(slot)) trailsValid = false;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns whether the frame in the given slot was the last drawn on
+  // a pixel which is still covered.
+  /////////////////////////////////////////////////////////////////////////////
+  private boolean covers(int slot) {
+    int w = trails.getWidth(), h = trails.getHeight();
+    int px, py, qx, qy, idx;
+    float xx, yy;
+    for(int k=0; k<np; k++) {
+      xx = xCoor(xpos[slot*np+k]);
+      yy = yCoor(ypos[slot*np+k]);
+      if (!(xx > -2.0F && xx < w+1.0F && yy > -2.0F && yy < h+1.0F)) continue;
+      px = Math.round(xx);
+      py = Math.round(yy);
+      for(int j=0; j<dotx.length; j++) {
+        qx = px+dotx[j];
+        qy = py+doty[j];
+        if (qx < 0 || qx >= w || qy < 0 || qy >= h) continue;
+        idx = qy*w+qx;
+        if (coverage[idx] > 0 && writer[idx] == slot) return true;
+      }
+    }
+    return false;
   }
 
   /////////////////////////////////////////////////////////////////////////////
@@ -0,0 +1,58 @@
+/****************************************************************************
+* This applies a fourth order Runge-Kutta method
+****************************************************************************/
+
+public class RK4Integrator extends Integrator {
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Scratch arrays used by the method.  Each thread gets its own set so
+  // that stepping does not allocate anything once the buffers exist.
+  /////////////////////////////////////////////////////////////////////////////
+  private static final class Scratch {
+    final double[] xx = new double[4];
+    final double[] k1 = new double[4];
+    final double[] k2 = new double[4];
+    final double[] k3 = new double[4];
+    final double[] k4 = new double[4];
+    final double[] tmp = new double[4];
+  }
+
+  private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+    protected Scratch initialValue() { return new Scratch(); }
+  };
+
+  public String name() { return "rk4"; }
+
+  public void step(Gravity g, ParticleStore p, int from, int to, double dt) {
+    Scratch s = scratch.get();
+    for(int i=from; i<to; i++) {
+      if (!p.active[i]) continue;
+      p.load(i,s.xx);
+      RK4(g,s.xx,dt,s);
+      p.store(i,s.xx);
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This advances a single state vector xx = {x, y, vx, vy} by dt.
+  /////////////////////////////////////////////////////////////////////////////
+  private static void RK4(Gravity g, double[] xx, double dt, Scratch s) {
+    int n = xx.length;
+    g.F(xx,s.k1);
+    g.F(combine(1.0,xx,dt/2.0,s.k1,s.tmp),s.k2);
+    g.F(combine(1.0,xx,dt/2.0,s.k2,s.tmp),s.k3);
+    g.F(combine(1.0,xx,dt,s.k3,s.tmp),s.k4);
+    for(int i=0; i<n; i++) xx[i] += dt*(s.k1[i]+2.0*s.k2[i]+2.0*s.k3[i]+s.k4[i])/6.0;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This calculates a linear combination of two arrays and stores it in
+  // result, which is also returned for convenience.
+  /////////////////////////////////////////////////////////////////////////////
+  static double[] combine(double a1, double[] v1,double a2, double[] v2,
+                          double[] result) {
+    int n = v1.length;
+    for(int i=0; i<n; i++) result[i] = a1*v1[i]+a2*v2[i];
+    return result;
+  }
+}
@@ -0,0 +1,146 @@
+import java.io.IOException;
+
+/****************************************************************************
+* Plays back a recorded trajectory (see TrajectoryReader): the replay has a
+* current time, which goes forwards or backwards when it is playing, or can
+* be moved anywhere (seek).  The positions at the current time are
+* interpolated between the two records around it, with the cubic Hermite
+* interpolation of their positions and velocities, so that playback is
+* smooth whatever the number of steps between two records, as long as they
+* are close enough in time for the interpolation to hold (see Hermite.fits;
+* the others are shown at the nearest record).
+*
+* This class does not use Swing; Orbite draws the positions it gives.
+****************************************************************************/
+
+public class Replay {
+
+  public final TrajectoryReader reader;
+
+  // the two records around the current time (k0 = -1: none loaded yet):
+  private final ParticleStore p0, p1;
+  private long k0 = -1, k1 = -1;
+  private double t0, t1;
+
+  // first and last times of the recording:
+  private double first, last;
+
+  private double time;
+  private boolean playing = false;
+  private int direction = 1;
+
+  /////////////////////////////////////////////////////////////////////////////
+  /**
+   * A constructor.
+   *
+   * @param  filename  a trajectory file with at least one record
+   */
+  /////////////////////////////////////////////////////////////////////////////
+  public Replay(String filename) throws IOException {
+    reader = new TrajectoryReader(filename);
+    if (reader.records() == 0) {
+      reader.close();
+      throw new IOException("No record in \""+filename+"\"");
+    }
+    p0 = new ParticleStore(reader.np,reader.colors);
+    p1 = new ParticleStore(reader.np,reader.colors);
+    refresh();
+    time = first;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This looks for records added since the file was opened (when it is
+  // still being recorded).
+  /////////////////////////////////////////////////////////////////////////////
+  public void refresh() throws IOException {
+    long n = reader.records();
+    first = reader.time(0);
+    last = reader.time(n-1);
+  }
+
+  public double firstTime() { return first; }
+
+  public double lastTime() { return last; }
+
+  public double getTime() { return time; }
+
+  public boolean isPlaying() { return playing; }
+
+  public void setPlaying(boolean playing) { this.playing = playing; }
+
+  // 1 = forwards, -1 = backwards:
+  public int getDirection() { return direction; }
+
+  public void setDirection(int direction) { this.direction = (direction < 0) ? -1 : 1; }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This moves the current time to t, within the recording.
+  /////////////////////////////////////////////////////////////////////////////
+  public void seek(double t) {
+    time = Math.max(first,Math.min(last,t));
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This moves the current time by h of simulated time in the direction of
+  // play, if playing, and stops at either end of the recording.
+  /////////////////////////////////////////////////////////////////////////////
+  public void advance(double h) {
+    if (!playing) return;
+    seek(time + direction*h);
+    if (time == (direction > 0 ? last : first)) playing = false;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This writes the positions at the current time into x and y.
+  /////////////////////////////////////////////////////////////////////////////
+  public void positions(double[] x, double[] y) throws IOException {
+    load(time);
+    int n = reader.np;
+    if (k1 == k0 || t1 == t0) {
+      System.arraycopy(p0.x,0,x,0,n);
+      System.arraycopy(p0.y,0,y,0,n);
+      return;
+    }
+    double h = t1-t0, s = (time-t0)/h;
+    for(int i=0; i<n; i++) {
+      // (records far apart are shown as they are, see Hermite.fits)
+      if (Hermite.fits(p0.x[i],p0.y[i],p0.vx[i],p0.vy[i],p1.x[i],p1.y[i],p1.vx[i],p1.vy[i],
+                       h,0.0,0.0)) {
+        x[i] = Hermite.position(p0.x[i],p0.vx[i],p1.x[i],p1.vx[i],h,s);
+        y[i] = Hermite.position(p0.y[i],p0.vy[i],p1.y[i],p1.vy[i],h,s);
+      } else {
+        x[i] = (s < 0.5) ? p0.x[i] : p1.x[i];
+        y[i] = (s < 0.5) ? p0.y[i] : p1.y[i];
+      }
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This loads the records around time t, unless they are already there.
+  // A step forwards or backwards by one record reuses the one loaded.
+  /////////////////////////////////////////////////////////////////////////////
+  private void load(double t) throws IOException {
+    if (k0 >= 0 && t >= t0 && t <= t1) return;
+    long n = reader.records();
+    long k = reader.find(t);
+    long kn = Math.min(k+1,n-1);
+    if (k == k1) {
+      p1.copyTo(p0);
+      t0 = t1;
+    } else if (kn == k0) {
+      p0.copyTo(p1);
+      t1 = t0;
+      t0 = reader.read(k,p0);
+      k1 = kn;
+      k0 = k;
+      return;
+    } else {
+      t0 = reader.read(k,p0);
+    }
+    t1 = reader.read(kn,p1);
+    k0 = k;
+    k1 = kn;
+  }
+
+  public void close() throws IOException { reader.close(); }
+}
@@ -0,0 +1,343 @@
+import java.awt.Color;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/****************************************************************************
+* The state of a simulation: the planet, the projectiles and the way they
+* are integrated.  This class does not use Swing, so it can be run both
+* from the Orbite window and from the command line (see Batch).
+****************************************************************************/
+
+public class Simulation {
+
+  private static final int defaultThreshold = 4096;
+
+  public ParticleStore particles;
+  public Gravity gravity = new Gravity();
+  public Integrator integrator = new RK4Integrator();
+  public ParallelStepper stepper = new ParallelStepper(0,defaultThreshold);
+
+  // mutual attraction of the particles (null = none):
+  public NBody nbody = null;
+
+  // impacts, periapsis and apoapsis passages (null = not looked for):
+  public EventDetector events = new EventDetector();
+
+  // trajectory being recorded (null = none):
+  public TrajectoryWriter recorder = null;
+  public double planetSize = 0.1;
+  public double dt = 0.005;
+
+  // simulated time since the configuration was read:
+  public double time = 0.0;
+
+  // incremented each time a new configuration replaces the particles:
+  public int generation = 0;
+
+  // incremented each time the colour of a particle is changed:
+  public int colorGeneration = 0;
+
+  /////////////////////////////////////////////////////////////////////////////
+  /* a constructor, which sets up two projectiles */
+  /////////////////////////////////////////////////////////////////////////////
+  public Simulation() {
+    particles = new ParticleStore(2);
+    particles.set(0, 0.0, 0.5, 1.5, 0.0, Color.green);
+    particles.set(1, 0.0, 0.6, 1.5, 0.0, Color.blue);
+    particles.find_vL(gravity.x0,gravity.y0);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This advances all the projectiles by dt.
+  /////////////////////////////////////////////////////////////////////////////
+  public void step() {
+    step(dt);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This advances all the projectiles by h.
+  /////////////////////////////////////////////////////////////////////////////
+  public void step(double h) {
+    if (events != null) events.begin(gravity,particles,stepper);
+    if (nbody != null) {
+      nbody.step(integrator,gravity,particles,h,stepper);
+    } else {
+      stepper.step(integrator,gravity,particles,h);
+    }
+    if (events != null) events.end(gravity,particles,planetSize,time,h,stepper);
+    time += h;
+    if (recorder != null) recorder.step(this);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This calculates the velocity and angular momentum for the particles.
+  /////////////////////////////////////////////////////////////////////////////
+  public void find_vL() {
+    particles.find_vL(gravity.x0,gravity.y0);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Reads a configuration file.  The time step may be followed by optional
+  // lines of the form "keyword value", e.g. "integrator leapfrog", before
+  // the number of projectiles.  With the adaptive "rk45" method, the time
+  // step is the largest step allowed and "tolerance" sets the error
+  // tolerance.  "kepler" follows the exact Kepler orbits, whatever dt, and
+  // "levicivita" removes the singularity at r = 0 for close passes.
+  // "threads" and "parallelThreshold" control how many threads
+  // step the particles, and from how many particles on.  "simd true" uses
+  // the Vector API versions of rk4 and the symplectic methods when the
+  // jdk.incubator.vector module is available.
+  //
+  // "blockSteps true" gives each particle steps of dt/2^L, with L chosen
+  // from its time scale (up to "maxLevel"), so that dt becomes the largest
+  // step; "eta" is the largest step as a fraction of the time scale.  This
+  // works with euler, rk4 and the symplectic methods, without N-body mode.
+  //
+  // "nbody true" makes the particles attract each other, according to their
+  // masses, which are then given after the colour of each particle (a
+  // missing mass is 0).  This needs a symplectic integrator, or "wh" (the
+  // Wisdom-Holman map) when the planet dominates.  "theta" is the
+  // opening angle of the Barnes-Hut tree (0 = exact sums), "directThreshold"
+  // the number of massive particles below which exact sums are used, and
+  // "softening" a softening length.
+  //
+  // "events false" turns off the detection of impacts on the planet (after
+  // which particles stop) and of periapsis and apoapsis passages.
+  //
+  // A checkpoint (see Checkpoint) can be read instead of a configuration
+  // file, and takes the simulation back to the exact state it was saved in.
+  //
+  // The simulation is left unchanged if the file cannot be read; the errors
+  // in the file are reported with their line (see ConfigParser).
+  /////////////////////////////////////////////////////////////////////////////
+  public void readConfig(String filename) throws IOException {
+    if (Checkpoint.isCheckpoint(filename)) {
+      Checkpoint.read(filename).restore(this);
+      return;
+    }
+    ConfigParser in;
+    int np;
+    double G, M, planetSize, dt;
+    double tolerance = 1.0e-9;
+    int threads = 0, threshold = defaultThreshold;
+    boolean simd = false;
+    NBody nbody = null;
+    double theta = 0.5, softening = 0.0;
+    int directThreshold = 64;
+    boolean events = true;
+    boolean blockSteps = false;
+    double eta = 0.02;
+    int maxLevel = 12;
+    Integrator integrator = new RK4Integrator();
+    ParticleStore p;
+    try {
+      in = new ConfigParser(filename);
+      try {
+        G = in.number();
+        M = in.number();
+        planetSize = in.number();
+        dt = in.number();
+        while (in.keyword()) {
+          String key = in.word();
+          String value = in.word();
+          try {
+            if (key.equals("integrator")) {
+              integrator = Integrator.forName(value);
+              if (integrator == null) throw new IllegalArgumentException(value);
+            } else if (key.equals("tolerance")) {
+              tolerance = parseDouble(value);
+              if (!(tolerance > 0.0)) throw new IllegalArgumentException(value);
+            } else if (key.equals("threads")) {
+              threads = Integer.parseInt(value);
+              if (threads < 0) throw new IllegalArgumentException(value);
+            } else if (key.equals("parallelThreshold")) {
+              threshold = Integer.parseInt(value);
+            } else if (key.equals("simd")) {
+              simd = Boolean.parseBoolean(value);
+            } else if (key.equals("events")) {
+              events = Boolean.parseBoolean(value);
+            } else if (key.equals("blockSteps")) {
+              blockSteps = Boolean.parseBoolean(value);
+            } else if (key.equals("eta")) {
+              eta = parseDouble(value);
+              if (!(eta > 0.0)) throw new IllegalArgumentException(value);
+            } else if (key.equals("maxLevel")) {
+              maxLevel = Integer.parseInt(value);
+              if (maxLevel < 0 || maxLevel > 40) throw new IllegalArgumentException(value);
+            } else if (key.equals("nbody")) {
+              nbody = Boolean.parseBoolean(value) ? new NBody() : null;
+            } else if (key.equals("theta")) {
+              theta = parseDouble(value);
+              if (!(theta >= 0.0)) throw new IllegalArgumentException(value);
+            } else if (key.equals("directThreshold")) {
+              directThreshold = Integer.parseInt(value);
+            } else if (key.equals("softening")) {
+              softening = parseDouble(value);
+              if (!(softening >= 0.0)) throw new IllegalArgumentException(value);
+            } else {
+              throw in.error("unknown keyword \""+key+"\"");
+            }
+          } catch(IllegalArgumentException e) {
+            throw in.error("bad value \""+value+"\" for "+key);
+          }
+          in.endLine();
+        }
+        np = in.integer();
+        if (np < 0) throw in.error("negative number of projectiles");
+        p = new ParticleStore(np);
+        in.particles(p,threads);
+      } finally {
+        in.close();
+      }
+      integrator = setup(integrator,tolerance,simd,blockSteps,eta,maxLevel);
+      if (nbody != null) {
+        if (!NBody.supports(integrator))
+          throw new IllegalArgumentException("nbody "+integrator.name());
+        nbody.tree.theta = theta;
+        nbody.tree.directThreshold = directThreshold;
+        nbody.tree.softening = softening;
+      }
+    } catch(IOException e) {
+      throw e;
+    } catch(Exception e) {
+      throw new IOException("Unable to read file \""+filename+"\"",e);
+    }
+
+    gravity.G = G;
+    gravity.M = M;
+    this.planetSize = planetSize;
+    this.dt = dt;
+    p.find_vL(gravity.x0,gravity.y0);
+    replace(p,integrator,nbody,events,threads,threshold);
+    time = 0.0;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This finishes setting up an integrator read as "integrator name" in a
+  // configuration file (see readConfig) with the other keywords which
+  // apply to it.
+  /////////////////////////////////////////////////////////////////////////////
+  static Integrator setup(Integrator integrator, double tolerance, boolean simd,
+                          boolean blockSteps, double eta, int maxLevel) {
+    if (integrator instanceof DormandPrinceIntegrator) {
+      ((DormandPrinceIntegrator) integrator).tolerance = tolerance;
+    }
+    if (simd) integrator = Integrator.vectorized(integrator);
+    if (blockSteps) {
+      BlockStepIntegrator b = new BlockStepIntegrator(integrator);
+      b.eta = eta;
+      b.maxLevel = maxLevel;
+      integrator = b;
+    }
+    return integrator;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This replaces the particles and the way they are integrated, as a new
+  // generation (the time is left to the caller).
+  /////////////////////////////////////////////////////////////////////////////
+  void replace(ParticleStore p, Integrator integrator, NBody nbody, boolean events,
+               int threads, int threshold) {
+    this.integrator = integrator;
+    this.nbody = nbody;
+    if (!events) {
+      this.events = null;
+    } else if (this.events == null) {
+      this.events = new EventDetector();
+    } else {
+      this.events.clear();
+    }
+    if (threads != stepper.threads() || threshold != stepper.threshold) {
+      stepper.shutdown();
+      stepper = new ParallelStepper(threads,threshold);
+    }
+    particles = p;
+    generation++;
+    // a trajectory file only holds one configuration:
+    if (recorder != null) {
+      recorder.close();
+      recorder = null;
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Writes a configuration file
+  /////////////////////////////////////////////////////////////////////////////
+  public void writeConfig(String filename) throws IOException {
+    PrintWriter out = new PrintWriter(new FileWriter(filename));
+    writeConfig(out);
+    out.close();
+    if (out.checkError()) throw new IOException("Unable to write to file \""+filename+"\"");
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Writes the configuration to out (numbers are written the same way
+  // whatever the default locale, i.e. with a decimal point)
+  /////////////////////////////////////////////////////////////////////////////
+  public void writeConfig(PrintWriter out) {
+    out.printf(Locale.ROOT,"%.15g # Gravitational constant%n",gravity.G);
+    out.printf(Locale.ROOT,"%.15g # Planet mass%n",gravity.M);
+    out.printf(Locale.ROOT,"%.15g # Planet radius%n",planetSize);
+    out.printf(Locale.ROOT,"%.15g # Time step%n",dt);
+    out.printf(Locale.ROOT,"integrator %s # Integration method%n",integrator.name());
+    if (integrator.scalar() != integrator) {
+      out.printf(Locale.ROOT,"simd true # Use the Vector API%n");
+    }
+    if (integrator instanceof DormandPrinceIntegrator) {
+      out.printf(Locale.ROOT,"tolerance %.6g # Error tolerance%n",
+                 ((DormandPrinceIntegrator) integrator).tolerance);
+    }
+    if (integrator instanceof BlockStepIntegrator) {
+      BlockStepIntegrator b = (BlockStepIntegrator) integrator;
+      out.printf(Locale.ROOT,"blockSteps true # Time step of each particle from its time scale%n");
+      out.printf(Locale.ROOT,"eta %g # Largest step over time scale%n",b.eta);
+      out.printf(Locale.ROOT,"maxLevel %d # Smallest step is dt/2^maxLevel%n",b.maxLevel);
+    }
+    if (events == null) {
+      out.printf(Locale.ROOT,"events false # No detection of impacts and apsides%n");
+    }
+    if (stepper.threads() != 0) {
+      out.printf(Locale.ROOT,"threads %d # Number of threads%n",stepper.threads());
+    }
+    if (stepper.threshold != defaultThreshold) {
+      out.printf(Locale.ROOT,"parallelThreshold %d # Smallest number of particles stepped in parallel%n",
+                 stepper.threshold);
+    }
+    if (nbody != null) {
+      out.printf(Locale.ROOT,"nbody true # Mutual attraction of the projectiles%n");
+      out.printf(Locale.ROOT,"theta %g # Opening angle%n",nbody.tree.theta);
+      out.printf(Locale.ROOT,"directThreshold %d # Largest number of masses summed directly%n",
+                 nbody.tree.directThreshold);
+      if (nbody.tree.softening != 0.0) {
+        out.printf(Locale.ROOT,"softening %g # Softening length%n",nbody.tree.softening);
+      }
+    }
+    ParticleStore p = particles;
+    boolean masses = false;
+    for(int i=0; i<p.n; i++) masses |= (p.m[i] != 0.0);
+    out.printf(Locale.ROOT,"%d # Number of projectiles%n",p.n);
+    for(int i=0; i<p.n; i++) {
+      if (masses) {
+        out.printf(Locale.ROOT,"%g %g %g %g %s %g # Particule %d%n",p.x[i],p.y[i],p.vx[i],p.vy[i],
+                   Integer.toString(p.colors[i].getRGB()),p.m[i],i);
+      } else {
+        out.printf(Locale.ROOT,"%g %g %g %g %s # Particule %d%n",p.x[i],p.y[i],p.vx[i],p.vy[i],
+                   Integer.toString(p.colors[i].getRGB()),i);
+      }
+    }
+    out.flush();
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  /* This parses a double after having replaced "d" and "D" to "e". */
+  /////////////////////////////////////////////////////////////////////////////
+  public static double parseDouble(String s) {
+    try {
+      return Double.parseDouble(s.replace('d','E').replace('D','E').replace(',','.'));
+    } catch(Exception e) {
+      return Double.NaN;
+    }
+  }
+}
@@ -0,0 +1,201 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/****************************************************************************
+* Runs a Simulation on its own thread, taking "warp" steps of dt every tick
+* of wall-clock time, and publishes a snapshot after each tick.  Other
+* threads never touch the simulation directly: they hand it commands
+* through invoke(), which are run on the simulation thread between ticks.
+*
+* The steps of a tick must fit in half of it, so that the window keeps
+* enough time to draw; the steps which do not fit are dropped rather than
+* owed, and achievedWarp() tells how fast the simulation really goes.
+****************************************************************************/
+
+public class SimulationLoop implements Runnable {
+
+  private final Simulation sim;
+  private final SnapshotBuffer buffer;
+  private final ConcurrentLinkedQueue<Runnable> commands =
+    new ConcurrentLinkedQueue<Runnable>();
+
+  // wall-clock time between two ticks, and the part of it which can be
+  // spent stepping:
+  private final long tickNanos, budgetNanos;
+
+  // number of steps per tick asked for, and the number per tick of
+  // wall-clock time actually taken (measured over windowNanos):
+  private volatile int warp = 1;
+  private volatile double achievedWarp = 1.0;
+  private static final long windowNanos = 500000000L;
+  private long windowStart, windowSteps;
+
+  // steps taken and time spent taking them since the start, and where they
+  // are reported (null = nowhere):
+  private long totalSteps, integrateNanos;
+  private volatile OrbiteMetrics metrics = null;
+
+  // automatic checkpoints (null = none), taken every autosaveNanos:
+  private volatile Checkpointer autosave = null;
+  private volatile String autosaveFile;
+  private volatile long autosaveNanos;
+  private long lastAutosave;
+
+  private volatile boolean running = true;
+  private volatile Thread thread;
+
+  /////////////////////////////////////////////////////////////////////////////
+  /**
+   * A constructor.
+   *
+   * @param  sim        the simulation to run
+   * @param  buffer     where to publish snapshots
+   * @param  tickNanos  wall-clock time between two ticks, in nanoseconds
+   */
+  /////////////////////////////////////////////////////////////////////////////
+  public SimulationLoop(Simulation sim, SnapshotBuffer buffer, long tickNanos) {
+    this.sim = sim;
+    this.buffer = buffer;
+    this.tickNanos = tickNanos;
+    this.budgetNanos = tickNanos/2;
+    buffer.publish(sim);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This asks for a command to be run on the simulation thread before the
+  // next step.
+  /////////////////////////////////////////////////////////////////////////////
+  public void invoke(Runnable command) {
+    commands.add(command);
+    LockSupport.unpark(thread);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This starts the simulation thread.
+  /////////////////////////////////////////////////////////////////////////////
+  public void start() {
+    Thread t = new Thread(this,"Simulation");
+    t.setDaemon(true);
+    thread = t;
+    t.start();
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This pauses (running = false) or resumes the simulation.
+  /////////////////////////////////////////////////////////////////////////////
+  public void setRunning(boolean running) {
+    this.running = running;
+    LockSupport.unpark(thread);
+  }
+
+  public boolean isRunning() { return running; }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This sets the number of steps taken per tick (the time warp).
+  /////////////////////////////////////////////////////////////////////////////
+  public void setWarp(int warp) {
+    this.warp = Math.max(1,warp);
+  }
+
+  public int getWarp() { return warp; }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns the number of steps recently taken per tick of wall-clock
+  // time, which is less than getWarp() when the processor cannot keep up.
+  /////////////////////////////////////////////////////////////////////////////
+  public double achievedWarp() { return achievedWarp; }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This sets the metrics updated after each tick.
+  /////////////////////////////////////////////////////////////////////////////
+  public void setMetrics(OrbiteMetrics metrics) { this.metrics = metrics; }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This saves a checkpoint to filename every intervalNanos of wall-clock
+  // time while running (checkpointer = null: never).  Only the copy of the
+  // state is made on the simulation thread; the checkpointer writes it in
+  // the background, and a checkpoint is skipped while it is still busy.
+  /////////////////////////////////////////////////////////////////////////////
+  public void setAutosave(Checkpointer checkpointer, String filename, long intervalNanos) {
+    autosaveFile = filename;
+    autosaveNanos = intervalNanos;
+    lastAutosave = System.nanoTime();
+    autosave = checkpointer;
+  }
+
+  public void run() {
+    long next = System.nanoTime();
+    long now, deadline, end;
+    int n, k;
+    boolean changed;
+    Runnable command;
+    windowStart = next;
+    while (true) {
+      changed = false;
+      while ((command = commands.poll()) != null) {
+        command.run();
+        changed = true;
+      }
+      if (running) {
+        now = System.nanoTime();
+        if (now - next >= 0) {
+          n = warp;
+          deadline = now + budgetNanos;
+          k = 0;
+          do {
+            sim.step();
+            k++;
+          } while (k < n && System.nanoTime() - deadline < 0);
+          end = System.nanoTime();
+          measure(k,now);
+          totalSteps += k;
+          integrateNanos += end-now;
+          if (metrics != null) metrics.update(sim,totalSteps,integrateNanos);
+          sim.find_vL();
+          buffer.publish(sim);
+          autosave(end);
+          // fixed time step, without trying to catch up after a long stall:
+          next += tickNanos;
+          if (now - next > tickNanos) next = now;
+          continue;
+        }
+        if (changed) {
+          sim.find_vL();
+          buffer.publish(sim);
+        }
+        LockSupport.parkNanos(this,next-now);
+      } else {
+        if (changed) {
+          sim.find_vL();
+          buffer.publish(sim);
+        }
+        LockSupport.park(this);
+        next = System.nanoTime();
+        windowStart = next;
+        windowSteps = 0;
+      }
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This hands a checkpoint to the checkpointer, if one is due at time now.
+  /////////////////////////////////////////////////////////////////////////////
+  private void autosave(long now) {
+    Checkpointer c = autosave;
+    if (c == null || now - lastAutosave < autosaveNanos || c.isBusy()) return;
+    if (c.submit(Checkpoint.capture(sim),autosaveFile)) lastAutosave = now;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This counts k steps taken at time now, and updates achievedWarp at the
+  // end of each window.
+  /////////////////////////////////////////////////////////////////////////////
+  private void measure(int k, long now) {
+    windowSteps += k;
+    if (now - windowStart >= windowNanos) {
+      achievedWarp = (double) windowSteps*tickNanos/(now-windowStart);
+      windowStart = now;
+      windowSteps = 0;
+    }
+  }
+}
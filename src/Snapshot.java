@@ -0,0 +1,93 @@
+import java.awt.Color;
+
+/****************************************************************************
+* A copy of the state of a Simulation at a given time, as handed from the
+* simulation thread to the thread which draws it (see SnapshotBuffer).  It
+* also holds the state at the time of the previous snapshot, so that the
+* positions in between can be interpolated (see interpolate) and drawn at
+* whatever time the display needs them, independently of the time step.
+****************************************************************************/
+
+public class Snapshot {
+
+  // copy of the particles, with a copy of their colours (shared by
+  // particles and start) taken again when a colour is changed:
+  public ParticleStore particles;
+
+  public double time;
+  public double planetSize;
+
+  // centre of the planet:
+  public double x0, y0;
+
+  // state at the time of the previous snapshot (the same as particles if
+  // there is none, e.g. after a new configuration has been loaded):
+  public ParticleStore start;
+  public double startTime;
+
+  // System.nanoTime() when the snapshot was published:
+  public long publishNanos;
+
+  // Simulation.generation and colorGeneration at the time of the copy:
+  public int generation = -1, colorGeneration = -1;
+
+  // whether the snapshot has been published but not yet taken by the reader:
+  boolean fresh = false;
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This copies the state of sim into this snapshot, with the end state of
+  // previous (which may be null) as start state.  The arrays are only
+  // reallocated when a new configuration has been loaded.
+  /////////////////////////////////////////////////////////////////////////////
+  public void copyFrom(Simulation sim, Snapshot previous) {
+    ParticleStore p = sim.particles;
+    if (particles == null || generation != sim.generation || particles.n != p.n) {
+      Color[] colors = p.colors.clone();
+      particles = new ParticleStore(p.n,colors);
+      start = new ParticleStore(p.n,colors);
+    } else if (colorGeneration != sim.colorGeneration) {
+      System.arraycopy(p.colors,0,particles.colors,0,p.n);
+    }
+    colorGeneration = sim.colorGeneration;
+    p.copyTo(particles);
+    time = sim.time;
+    planetSize = sim.planetSize;
+    x0 = sim.gravity.x0;
+    y0 = sim.gravity.y0;
+    generation = sim.generation;
+    if (previous != null && previous.generation == generation
+        && previous.particles.n == p.n && previous.time <= time) {
+      previous.particles.copyTo(start);
+      startTime = previous.time;
+    } else {
+      p.copyTo(start);
+      startTime = time;
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This interpolates the positions at startTime + s*(time-startTime), with
+  // 0 <= s <= 1, into x and y, using cubic Hermite interpolation.  The
+  // particles for which the interval is too long against their time scale
+  // (see Hermite.fits) are shown where they are at its end instead.
+  /////////////////////////////////////////////////////////////////////////////
+  public void interpolate(double s, double[] x, double[] y) {
+    ParticleStore p0 = start, p1 = particles;
+    double h = time-startTime;
+    if (h == 0.0 || s >= 1.0) {
+      System.arraycopy(p1.x,0,x,0,p1.n);
+      System.arraycopy(p1.y,0,y,0,p1.n);
+      return;
+    }
+    for(int i=0; i<p1.n; i++) {
+      if (Hermite.fits(p0.x[i],p0.y[i],p0.vx[i],p0.vy[i],p1.x[i],p1.y[i],p1.vx[i],p1.vy[i],
+                       h,x0,y0)) {
+        x[i] = Hermite.position(p0.x[i],p0.vx[i],p1.x[i],p1.vx[i],h,s);
+        y[i] = Hermite.position(p0.y[i],p0.vy[i],p1.y[i],p1.vy[i],h,s);
+      } else {
+        x[i] = p1.x[i];
+        y[i] = p1.y[i];
+      }
+    }
+  }
+}
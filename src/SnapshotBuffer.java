@@ -0,0 +1,52 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/****************************************************************************
+* A lock-free triple buffer of snapshots.  One thread (the simulation) fills
+* the back buffer and publishes it; another (the display) takes the most
+* recent published snapshot.  Neither ever waits for the other: the writer
+* simply overwrites snapshots the reader has not taken yet, and the reader
+* keeps drawing the last one it took until a newer one is published.
+****************************************************************************/
+
+public class SnapshotBuffer {
+
+  // the buffer being exchanged; the atomic swaps also make the contents of
+  // a snapshot visible to the thread which receives it:
+  private final AtomicReference<Snapshot> middle =
+    new AtomicReference<Snapshot>(new Snapshot());
+
+  // owned by the writer, and the last snapshot it published (which is only
+  // ever read once published):
+  private Snapshot back = new Snapshot(), last = null;
+
+  // owned by the reader:
+  private Snapshot front = new Snapshot();
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Writer side: this copies the state of sim into the back buffer and
+  // publishes it.
+  /////////////////////////////////////////////////////////////////////////////
+  public void publish(Simulation sim) {
+    back.copyFrom(sim,last);
+    back.publishNanos = System.nanoTime();
+    back.fresh = true;
+    last = back;
+    back = middle.getAndSet(back);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Reader side: this takes the latest published snapshot, if there is one
+  // which has not been taken yet, and returns whether it did so.
+  /////////////////////////////////////////////////////////////////////////////
+  public boolean update() {
+    if (!middle.get().fresh) return false;
+    front = middle.getAndSet(front);
+    front.fresh = false;
+    return true;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Reader side: the snapshot taken by the last call to update().
+  /////////////////////////////////////////////////////////////////////////////
+  public Snapshot front() { return front; }
+}
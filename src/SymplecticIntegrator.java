@@ -0,0 +1,81 @@
+/****************************************************************************
+* Symplectic integrators built by composing kick-drift-kick leapfrog steps.
+* The leapfrog itself is second order; Yoshida's compositions raise this to
+* fourth and sixth order.  Unlike the Runge-Kutta methods, these keep the
+* energy error bounded, so orbits stay closed over long runs and much
+* larger time steps can be used.
+****************************************************************************/
+
+public class SymplecticIntegrator extends Integrator {
+
+  private final String name;
+
+  // kick and drift coefficients (in units of dt).  A step consists of
+  // kick(c[0]), drift(d[0]), kick(c[1]), drift(d[1]), ..., kick(c[n]).
+  final double[] c, d;
+
+  /////////////////////////////////////////////////////////////////////////////
+  /**
+   * A constructor.
+   *
+   * @param  name  name of the method
+   * @param  w     weights of the leapfrog steps which make up one step
+   */
+  /////////////////////////////////////////////////////////////////////////////
+  public SymplecticIntegrator(String name, double[] w) {
+    int n = w.length;
+    this.name = name;
+    c = new double[n+1];
+    d = new double[n];
+    // consecutive half kicks are merged:
+    for(int i=0; i<n; i++) {
+      d[i]    = w[i];
+      c[i]   += w[i]/2.0;
+      c[i+1] += w[i]/2.0;
+    }
+  }
+
+  /** Second order kick-drift-kick leapfrog. */
+  public static SymplecticIntegrator leapfrog() {
+    return new SymplecticIntegrator("leapfrog", new double[] {1.0});
+  }
+
+  /** Yoshida's fourth order method (three leapfrog steps). */
+  public static SymplecticIntegrator yoshida4() {
+    double cbrt2 = Math.cbrt(2.0);
+    double w1 = 1.0/(2.0-cbrt2);
+    double w0 = -cbrt2/(2.0-cbrt2);
+    return new SymplecticIntegrator("yoshida4", new double[] {w1, w0, w1});
+  }
+
+  /** Yoshida's sixth order method (solution A, seven leapfrog steps). */
+  public static SymplecticIntegrator yoshida6() {
+    double w1 = -1.17767998417887;
+    double w2 =  0.235573213359357;
+    double w3 =  0.784513610477560;
+    double w0 = 1.0-2.0*(w1+w2+w3);
+    return new SymplecticIntegrator("yoshida6", new double[] {w3, w2, w1, w0, w1, w2, w3});
+  }
+
+  public String name() { return name; }
+
+  public void step(Gravity g, ParticleStore p, int from, int to, double dt) {
+    int n = d.length;
+    double x, y, vx, vy, k;
+    for(int i=from; i<to; i++) {
+      if (!p.active[i]) continue;
+      x = p.x[i]; y = p.y[i]; vx = p.vx[i]; vy = p.vy[i];
+      for(int j=0; j<n; j++) {
+        k = g.k(x,y)*c[j]*dt;
+        vx += (g.x0-x)*k;
+        vy += (g.y0-y)*k;
+        x += vx*d[j]*dt;
+        y += vy*d[j]*dt;
+      }
+      k = g.k(x,y)*c[n]*dt;
+      vx += (g.x0-x)*k;
+      vy += (g.y0-y)*k;
+      p.x[i] = x; p.y[i] = y; p.vx[i] = vx; p.vy[i] = vy;
+    }
+  }
+}
@@ -0,0 +1,197 @@
+import java.awt.Color;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/****************************************************************************
+* Reads the trajectory files written by TrajectoryWriter (see there for the
+* format).  All the records have the same size, so record k is found at
+* once from its number.  The records are read straight from memory-mapped
+* windows of the file, which are only mapped when first needed, so that
+* jumping around a recording of several gigabytes only touches the pages
+* of the records actually read.
+*
+* The record at a given time is found with find(), by binary search in a
+* keyframe index holding the time of every keyInterval-th record, then
+* among the records of one interval.
+****************************************************************************/
+
+public class TrajectoryReader {
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+
+  public final int version, np, stride, headerBytes;
+  public final long recordBytes;
+  public final double G, M, planetSize, dt;
+  public final Color[] colors;
+
+  private final ByteBuffer small = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+  // mapped windows of recordsPerWindow records each, and the number of
+  // records each one covers (the last one grows with the file):
+  private final long recordsPerWindow;
+  private final List<DoubleBuffer> windows = new ArrayList<DoubleBuffer>();
+  private final List<Long> mapped = new ArrayList<Long>();
+
+  // keyframe index: time of records 0, keyInterval, 2*keyInterval, ...
+  public static final int keyInterval = 256;
+  private double[] keys = new double[64];
+  private int nkeys = 0;
+
+  // number of records when last looked at:
+  private long nrecords = 0;
+
+  /////////////////////////////////////////////////////////////////////////////
+  /**
+   * A constructor, which reads the header.
+   *
+   * @param  filename  the trajectory file
+   */
+  /////////////////////////////////////////////////////////////////////////////
+  public TrajectoryReader(String filename) throws IOException {
+    file = new RandomAccessFile(filename,"r");
+    channel = file.getChannel();
+    try {
+      ByteBuffer h = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(h,0);
+      byte[] m = new byte[8];
+      h.get(m);
+      if (!Arrays.equals(m,TrajectoryWriter.magicBytes))
+        throw new IOException("\""+filename+"\" is not a trajectory file");
+      version = h.getInt();
+      if (version != TrajectoryWriter.version)
+        throw new IOException("Unknown trajectory file version "+version);
+      headerBytes = h.getInt();
+      np = h.getInt();
+      stride = h.getInt();
+      h.getLong(); // number of records, read by records()
+      G = h.getDouble();
+      M = h.getDouble();
+      planetSize = h.getDouble();
+      dt = h.getDouble();
+      if (np < 0 || headerBytes < 64+4L*np) throw new IOException("Bad trajectory header");
+      ByteBuffer c = ByteBuffer.allocate(4*np).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(c,64);
+      colors = new Color[np];
+      for(int i=0; i<np; i++) colors[i] = new Color(c.getInt());
+      recordBytes = 8L*(1+4L*np);
+      // (a mapping, read as doubles, must hold less than 2^31 of them)
+      recordsPerWindow = Math.max(1,(256L << 20)/recordBytes);
+      if (recordsPerWindow*(recordBytes/8) > Integer.MAX_VALUE)
+        throw new IOException("Too many particles ("+np+")");
+      records();
+    } catch(IOException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns the number of complete records.  It is read again each
+  // time, so that a file which is still being written can be followed.
+  /////////////////////////////////////////////////////////////////////////////
+  public long records() throws IOException {
+    readFully(small,TrajectoryWriter.countOffset);
+    long n = small.getLong();
+    // (records not yet on disk are not counted)
+    nrecords = Math.max(0,Math.min(n,(channel.size()-headerBytes)/recordBytes));
+    return nrecords;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns the time of record k.
+  /////////////////////////////////////////////////////////////////////////////
+  public double time(long k) throws IOException {
+    return window(k).get(offset(k));
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This reads record k into p, which must hold np particles, and returns
+  // its time.
+  /////////////////////////////////////////////////////////////////////////////
+  public double read(long k, ParticleStore p) throws IOException {
+    DoubleBuffer w = window(k);
+    int i = offset(k);
+    w.get(i+1,p.x,0,np);
+    w.get(i+1+np,p.y,0,np);
+    w.get(i+1+2*np,p.vx,0,np);
+    w.get(i+1+3*np,p.vy,0,np);
+    return w.get(i);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns the last record at or before time t (the first record if
+  // t is before it), or -1 if there is no record.
+  /////////////////////////////////////////////////////////////////////////////
+  public long find(double t) throws IOException {
+    if (nrecords == 0) return -1;
+    // extend the keyframe index to the records written since:
+    while ((long) nkeys*keyInterval < nrecords) {
+      if (nkeys == keys.length) keys = Arrays.copyOf(keys,2*nkeys);
+      keys[nkeys] = time((long) nkeys*keyInterval);
+      nkeys++;
+    }
+    // last keyframe at or before t, then last record of its interval:
+    int a = 0, b = nkeys, c;
+    while (b-a > 1) {
+      c = (a+b) >>> 1;
+      if (keys[c] <= t) a = c; else b = c;
+    }
+    long lo = (long) a*keyInterval, hi = Math.min(lo+keyInterval,nrecords), mid;
+    while (hi-lo > 1) {
+      mid = (lo+hi) >>> 1;
+      if (time(mid) <= t) lo = mid; else hi = mid;
+    }
+    return lo;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns the mapped window holding record k, which must be one of
+  // the records counted by records().
+  /////////////////////////////////////////////////////////////////////////////
+  private DoubleBuffer window(long k) throws IOException {
+    if (k < 0 || k >= nrecords) throw new IOException("No record "+k);
+    int w = (int) (k/recordsPerWindow);
+    while (windows.size() <= w) {
+      windows.add(null);
+      mapped.add(0L);
+    }
+    if (mapped.get(w) <= k-w*recordsPerWindow) {
+      long first = w*recordsPerWindow;
+      long n = Math.min(recordsPerWindow,nrecords-first);
+      ByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY,headerBytes+first*recordBytes,
+                                 n*recordBytes);
+      windows.set(w,b.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer());
+      mapped.set(w,n);
+    }
+    return windows.get(w);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // The index in its window of the first double of record k.
+  /////////////////////////////////////////////////////////////////////////////
+  private int offset(long k) {
+    return (int) ((k % recordsPerWindow)*(recordBytes/8));
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This fills b from the given position of the file, and rewinds it.
+  /////////////////////////////////////////////////////////////////////////////
+  private void readFully(ByteBuffer b, long position) throws IOException {
+    b.clear();
+    while (b.hasRemaining()) {
+      int n = channel.read(b,position+b.position());
+      if (n < 0) throw new IOException("Unexpected end of trajectory file");
+    }
+    b.flip();
+  }
+
+  public void close() throws IOException { file.close(); }
+}
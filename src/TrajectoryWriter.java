@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/****************************************************************************
+* Records the trajectories of the particles in a binary file, one record
+* every "stride" steps, for reading back later (see TrajectoryReader)
+* without simulating again.  The file is written through memory-mapped
+* windows of several records, so that a record is only a few bulk copies
+* of the arrays of the particles into memory; the operating system writes
+* the pages to disk in the background.
+*
+* Format (little endian):
+*
+*   offset  0   "ORBITRAJ"
+*           8   int    version (1)
+*          12   int    size of the header in bytes (a multiple of 8)
+*          16   int    number of particles np
+*          20   int    stride (steps between two records)
+*          24   long   number of complete records
+*          32   double G, M, planet radius, time step
+*          64   int    colours of the particles (np RGB values)
+*
+* followed by the records, each of 8*(1+4*np) bytes:
+*
+*   double time, then x[np], y[np], vx[np], vy[np].
+*
+* The number of records is updated after each record, so that a file which
+* was not closed properly can still be read up to its last record.
+****************************************************************************/
+
+public class TrajectoryWriter {
+
+  static final byte[] magicBytes = {'O','R','B','I','T','R','A','J'};
+  public static final int version = 1;
+  static final int countOffset = 24;
+
+  // size of the windows mapped at a time:
+  private static final long windowBytes = 32L << 20;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final MappedByteBuffer header;
+  private MappedByteBuffer window = null;
+  private DoubleBuffer doubles;
+
+  public final int np, stride, headerBytes;
+  public final long recordBytes;
+
+  // number of records in a window:
+  private final long recordsPerWindow;
+
+  // generation of the simulation being recorded:
+  private final int generation;
+
+  private long records = 0, steps = 0;
+  private long windowEnd = 0; // first record after the mapped window
+  private IOException error = null;
+  private boolean closed = false;
+
+  /////////////////////////////////////////////////////////////////////////////
+  /**
+   * A constructor, which writes the header and a first record of the
+   * current state.
+   *
+   * @param  filename  the file (which is overwritten)
+   * @param  sim       the simulation to record
+   * @param  stride    number of steps between two records
+   */
+  /////////////////////////////////////////////////////////////////////////////
+  public TrajectoryWriter(String filename, Simulation sim, int stride) throws IOException {
+    if (stride < 1) throw new IllegalArgumentException("stride "+stride);
+    ParticleStore p = sim.particles;
+    this.np = p.n;
+    this.stride = stride;
+    this.generation = sim.generation;
+    this.headerBytes = (64+4*np+7) & ~7;
+    this.recordBytes = 8L*(1+4L*np);
+    // (a mapping must be less than 2 GB)
+    recordsPerWindow = Math.max(1,windowBytes/recordBytes);
+    if (recordsPerWindow*recordBytes > Integer.MAX_VALUE)
+      throw new IOException("Too many particles ("+np+")");
+    file = new RandomAccessFile(filename,"rw");
+    try {
+      file.setLength(0);
+      channel = file.getChannel();
+      ByteBuffer h = ByteBuffer.allocate(headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+      h.put(magicBytes);
+      h.putInt(version);
+      h.putInt(headerBytes);
+      h.putInt(np);
+      h.putInt(stride);
+      h.putLong(0L);
+      h.putDouble(sim.gravity.G);
+      h.putDouble(sim.gravity.M);
+      h.putDouble(sim.planetSize);
+      h.putDouble(sim.dt);
+      for(int i=0; i<np; i++) h.putInt(p.colors[i].getRGB());
+      h.rewind();
+      while (h.hasRemaining()) channel.write(h);
+      header = channel.map(FileChannel.MapMode.READ_WRITE,0,32);
+      header.order(ByteOrder.LITTLE_ENDIAN);
+    } catch(IOException e) {
+      file.close();
+      throw e;
+    }
+    record(sim);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This is called after each step of the simulation, and records its
+  // state every stride steps.
+  /////////////////////////////////////////////////////////////////////////////
+  public void step(Simulation sim) {
+    if (++steps % stride == 0) record(sim);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This records the current state of the simulation.  After an error, or
+  // once a new configuration has been loaded, nothing more is recorded
+  // (see getError and isClosed).
+  /////////////////////////////////////////////////////////////////////////////
+  public void record(Simulation sim) {
+    if (closed || error != null) return;
+    ParticleStore p = sim.particles;
+    if (sim.generation != generation || p.n != np) {
+      close();
+      return;
+    }
+    try {
+      if (records == windowEnd) map(records);
+      doubles.put(sim.time);
+      doubles.put(p.x,0,np);
+      doubles.put(p.y,0,np);
+      doubles.put(p.vx,0,np);
+      doubles.put(p.vy,0,np);
+      records++;
+      header.putLong(countOffset,records);
+    } catch(IOException e) {
+      error = e;
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This maps the window which starts with record k.
+  /////////////////////////////////////////////////////////////////////////////
+  private void map(long k) throws IOException {
+    window = channel.map(FileChannel.MapMode.READ_WRITE,headerBytes+k*recordBytes,
+                         recordsPerWindow*recordBytes);
+    window.order(ByteOrder.LITTLE_ENDIAN);
+    doubles = window.asDoubleBuffer();
+    windowEnd = k+recordsPerWindow;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This cuts the file after the last record and closes it.
+  /////////////////////////////////////////////////////////////////////////////
+  public void close() {
+    if (closed) return;
+    closed = true;
+    try {
+      header.putLong(countOffset,records);
+      if (window != null) window.force();
+      header.force();
+      window = null;
+      doubles = null;
+      channel.truncate(headerBytes+records*recordBytes);
+      file.close();
+    } catch(IOException e) {
+      if (error == null) error = e;
+    }
+  }
+
+  public long records() { return records; }
+
+  public boolean isClosed() { return closed; }
+
+  // the error which stopped the recording, if any:
+  public IOException getError() { return error; }
+}
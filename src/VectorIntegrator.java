@@ -0,0 +1,148 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/****************************************************************************
+* SIMD versions of the RK4 and symplectic integrators, using the Vector API
+* (jdk.incubator.vector).  A whole lane-width of particles is advanced at
+* once, reading the structure-of-arrays store directly; the particles left
+* over at the end of a range are handed to the scalar integrator, and
+* inactive particles are masked out when the results are stored.  The
+* arithmetic is done in the same order as in the scalar code, so both give
+* identical results.
+*
+* This class needs "--add-modules jdk.incubator.vector" at run time and is
+* therefore only ever loaded through Integrator.vectorized().
+****************************************************************************/
+
+public class VectorIntegrator extends Integrator {
+
+  private static final VectorSpecies<Double> S = DoubleVector.SPECIES_PREFERRED;
+
+  // the scalar integrator, which also sets the method used:
+  private final Integrator scalar;
+
+  /////////////////////////////////////////////////////////////////////////////
+  /**
+   * A constructor.
+   *
+   * @param  scalar  an RK4Integrator or a SymplecticIntegrator
+   */
+  /////////////////////////////////////////////////////////////////////////////
+  public VectorIntegrator(Integrator scalar) {
+    if (!(scalar instanceof RK4Integrator) && !(scalar instanceof SymplecticIntegrator))
+      throw new IllegalArgumentException(scalar.name());
+    this.scalar = scalar;
+  }
+
+  public String name() { return scalar.name(); }
+
+  public Integrator scalar() { return scalar; }
+
+  public void step(Gravity g, ParticleStore p, int from, int to, double dt) {
+    int upper = from + S.loopBound(to-from);
+    if (scalar instanceof RK4Integrator) {
+      rk4(g,p,from,upper,dt);
+    } else {
+      SymplecticIntegrator si = (SymplecticIntegrator) scalar;
+      symplectic(g,p,from,upper,dt,si.c,si.d);
+    }
+    scalar.step(g,p,upper,to,dt);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This returns r^3 = |(x,y)-(x0,y0)|^3.
+  /////////////////////////////////////////////////////////////////////////////
+  private static DoubleVector r3(Gravity g, DoubleVector x, DoubleVector y) {
+    DoubleVector dx = x.sub(g.x0), dy = y.sub(g.y0);
+    DoubleVector r = dx.mul(dx).add(dy.mul(dy)).sqrt();
+    return r.mul(r).mul(r);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This applies a fourth order Runge-Kutta method to particles from, ...,
+  // to-1, where to-from is a multiple of the lane width.  The last three
+  // stages are taken in a loop, each from the previous one, so that the
+  // method stays small enough for the JIT to inline everything in it (the
+  // vectors passed to a call which is not inlined are allocated).
+  /////////////////////////////////////////////////////////////////////////////
+  private static void rk4(Gravity g, ParticleStore p, int from, int to, double dt) {
+    double h2 = dt/2.0, h, w;
+    DoubleVector x, y, vx, vy, tx, ty, r3;
+    DoubleVector kx, ky, kvx, kvy, sx, sy, svx, svy;
+    VectorMask<Double> active;
+    for(int i=from; i<to; i+=S.length()) {
+      x  = DoubleVector.fromArray(S,p.x,i);
+      y  = DoubleVector.fromArray(S,p.y,i);
+      vx = DoubleVector.fromArray(S,p.vx,i);
+      vy = DoubleVector.fromArray(S,p.vy,i);
+
+      r3 = r3(g,x,y);
+      kx = vx;
+      ky = vy;
+      kvx = x.neg().add(g.x0).mul(g.G).mul(g.M).div(r3);
+      kvy = y.neg().add(g.y0).mul(g.G).mul(g.M).div(r3);
+      sx = kx;
+      sy = ky;
+      svx = kvx;
+      svy = kvy;
+
+      // k2, k3 and k4, added to k1 with the weights 2, 2 and 1:
+      for(int stage=2; stage<=4; stage++) {
+        h = (stage < 4) ? h2 : dt;
+        w = (stage < 4) ? 2.0 : 1.0;
+        tx = x.add(kx.mul(h));
+        ty = y.add(ky.mul(h));
+        kx = vx.add(kvx.mul(h));
+        ky = vy.add(kvy.mul(h));
+        r3 = r3(g,tx,ty);
+        kvx = tx.neg().add(g.x0).mul(g.G).mul(g.M).div(r3);
+        kvy = ty.neg().add(g.y0).mul(g.G).mul(g.M).div(r3);
+        sx = sx.add(kx.mul(w));
+        sy = sy.add(ky.mul(w));
+        svx = svx.add(kvx.mul(w));
+        svy = svy.add(kvy.mul(w));
+      }
+
+      active = VectorMask.fromArray(S,p.active,i);
+      x.add(sx.mul(dt).div(6.0)).intoArray(p.x,i,active);
+      y.add(sy.mul(dt).div(6.0)).intoArray(p.y,i,active);
+      vx.add(svx.mul(dt).div(6.0)).intoArray(p.vx,i,active);
+      vy.add(svy.mul(dt).div(6.0)).intoArray(p.vy,i,active);
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // This applies a kick-drift-kick composition (see SymplecticIntegrator)
+  // to particles from, ..., to-1, where to-from is a multiple of the lane
+  // width.
+  /////////////////////////////////////////////////////////////////////////////
+  private static void symplectic(Gravity g, ParticleStore p, int from, int to,
+                                 double dt, double[] c, double[] d) {
+    int n = d.length, j;
+    double GM = g.G*g.M;
+    DoubleVector x, y, vx, vy, k;
+    VectorMask<Double> active;
+    for(int i=from; i<to; i+=S.length()) {
+      x  = DoubleVector.fromArray(S,p.x,i);
+      y  = DoubleVector.fromArray(S,p.y,i);
+      vx = DoubleVector.fromArray(S,p.vx,i);
+      vy = DoubleVector.fromArray(S,p.vy,i);
+      for(j=0; j<n; j++) {
+        k = DoubleVector.broadcast(S,GM).div(r3(g,x,y)).mul(c[j]).mul(dt);
+        vx = vx.add(x.neg().add(g.x0).mul(k));
+        vy = vy.add(y.neg().add(g.y0).mul(k));
+        x = x.add(vx.mul(d[j]).mul(dt));
+        y = y.add(vy.mul(d[j]).mul(dt));
+      }
+      k = DoubleVector.broadcast(S,GM).div(r3(g,x,y)).mul(c[n]).mul(dt);
+      vx = vx.add(x.neg().add(g.x0).mul(k));
+      vy = vy.add(y.neg().add(g.y0).mul(k));
+      active = VectorMask.fromArray(S,p.active,i);
+      x.intoArray(p.x,i,active);
+      y.intoArray(p.y,i,active);
+      vx.intoArray(p.vx,i,active);
+      vy.intoArray(p.vy,i,active);
+    }
+  }
+}
@@ -0,0 +1,36 @@
+/****************************************************************************
+* The Wisdom-Holman map, for systems where the planet dominates: each step
+* is a half kick by the mutual attraction of the particles, an exact drift
+* along the Kepler orbit around the planet for the whole step, and another
+* half kick.  The error only comes from the (small) mutual forces, so the
+* time step can be a sizeable fraction of the shortest orbital period.
+* The planet is fixed, so there is no indirect term.
+*
+* The kicks are done by NBody; without N-body mode, the particles do not
+* interact and a step is an exact Kepler drift.
+****************************************************************************/
+
+public class WisdomHolmanIntegrator extends Integrator {
+
+  private static final ThreadLocal<double[]> scratch = new ThreadLocal<double[]>() {
+    protected double[] initialValue() { return new double[5]; }
+  };
+
+  public String name() { return "wh"; }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // The Kepler drift of particles from, ..., to-1.
+  /////////////////////////////////////////////////////////////////////////////
+  public void step(Gravity g, ParticleStore p, int from, int to, double dt) {
+    double[] s = scratch.get();
+    double mu = g.G*g.M;
+    for(int i=from; i<to; i++) {
+      if (!p.active[i]) continue;
+      KeplerIntegrator.propagate(mu,p.x[i]-g.x0,p.y[i]-g.y0,p.vx[i],p.vy[i],dt,0.0,s);
+      p.x[i]  = s[0]+g.x0;
+      p.y[i]  = s[1]+g.y0;
+      p.vx[i] = s[2];
+      p.vy[i] = s[3];
+    }
+  }
+}